@@ -0,0 +1,156 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Cursor on top of getDatabaseObjects for applications which only have
+ * the list method. A page is read when the previous one is used up, it
+ * starts at the time of the last row. Rows of that time which were
+ * already returned are skipped.
+ * <p>
+ * A page with nothing new is asked for again with twice the size, there
+ * may be more rows of one time than fit into a page. If the application
+ * does not return more, the list goes on after that time with a warning.
+ */
+final class DatabaseListCursor implements IRCDDBExtApp.DatabaseCursor {
+    private static final Logger LOGGER = LogManager.getLogger(DatabaseListCursor.class);
+
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 10000;
+
+    private final IRCDDBExtApp app;
+    private final int tableID;
+
+    private Instant begin;
+    private int pageSize;
+    private Iterator<IRCDDBExtApp.DatabaseObject> page;
+    private IRCDDBExtApp.DatabaseObject next;
+    private boolean end;
+
+    /**
+     * keys returned with the time begin
+     */
+    private final Set<String> returnedAtBegin = new HashSet<>();
+
+    DatabaseListCursor(IRCDDBExtApp a, int table, Instant beginDate) {
+        app = a;
+        tableID = table;
+        begin = beginDate;
+        pageSize = PAGE_SIZE;
+        page = null;
+        next = null;
+        end = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((next == null) && !end) {
+            if ((page == null) || !page.hasNext()) {
+                readPage();
+                continue;
+            }
+
+            IRCDDBExtApp.DatabaseObject o = page.next();
+
+            if (!isReturned(o)) {
+                next = o;
+            }
+        }
+        return next != null;
+    }
+
+    private void readPage() {
+        List<IRCDDBExtApp.DatabaseObject> l = app.getDatabaseObjects(tableID, begin, pageSize);
+
+        page = null;
+        if ((l == null) || l.isEmpty()) {
+            end = true;
+            return;
+        }
+
+        for (IRCDDBExtApp.DatabaseObject o : l) {
+            if (!isReturned(o)) {
+                page = l.iterator();
+                return;
+            }
+        }
+
+        // nothing new: all rows have the time begin and were returned
+        if ((l.size() >= pageSize) && (pageSize < MAX_PAGE_SIZE)) {
+            pageSize = Math.min(MAX_PAGE_SIZE, pageSize * 2);
+            return;
+        }
+
+        if (l.size() >= PAGE_SIZE) {
+            LOGGER.warn("DatabaseListCursor: table " + tableID + ": no more than " + l.size()
+                    + " rows returned for " + TimestampCodec.format(begin)
+                    + ", further rows of that time may be missing");
+        }
+
+        // the times of the protocol are whole seconds
+        begin = begin.truncatedTo(ChronoUnit.SECONDS).plusSeconds(1);
+        pageSize = PAGE_SIZE;
+        returnedAtBegin.clear();
+    }
+
+    @Override
+    public IRCDDBExtApp.DatabaseObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        IRCDDBExtApp.DatabaseObject o = next;
+        next = null;
+
+        if (!o.getModTime().equals(begin)) {
+            begin = o.getModTime();
+            pageSize = PAGE_SIZE;
+            returnedAtBegin.clear();
+        }
+        returnedAtBegin.add(o.getKey());
+
+        return o;
+    }
+
+    private boolean isReturned(IRCDDBExtApp.DatabaseObject o) {
+        return o.getModTime().isBefore(begin)
+                || (o.getModTime().equals(begin) && returnedAtBegin.contains(o.getKey()));
+    }
+
+    @Override
+    public void close() {
+        page = null;
+        next = null;
+        end = true;
+    }
+}
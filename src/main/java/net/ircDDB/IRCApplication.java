@@ -34,7 +34,16 @@ public interface IRCApplication
 	void userChanOp(String nick, boolean op);
 	void userListReset();
 	
+	/**
+	 * The message is only valid during the call, call
+	 * {@link IRCMessage#detach()} to keep it.
+	 */
 	void msgChannel(IRCMessage m);
+
+	/**
+	 * The message is only valid during the call, call
+	 * {@link IRCMessage#detach()} to keep it.
+	 */
 	void msgQuery(IRCMessage m);
 
 	void setCurrentNick(String nick);
@@ -23,19 +23,21 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package net.ircDDB;
 
+import net.ircDDB.irc.HashedWheelTimer;
 import net.ircDDB.irc.IRCMessage;
 import net.ircDDB.irc.IRCMessageQueue;
+import net.ircDDB.irc.WakeupSignal;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -44,6 +46,16 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class IRCDDBApp implements IRCApplication, Runnable {
     private static final Logger LOGGER = LogManager.getLogger(IRCDDBApp.class);
 
+    /**
+     * channel updates buffered per table while SENDLIST is running
+     */
+    private static final int PUBLIC_UPDATES_CAPACITY = 65536;
+
+    /**
+     * SENDLIST answers with more pages whose cursor is kept open
+     */
+    private static final int SEND_LIST_CURSORS = 16;
+
     private final IRCDDBExtApp extApp;
 
     private IRCMessageQueue sendQ;
@@ -52,23 +64,26 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
     private String myNick;
 
-    int state;
-    int timer;
+    volatile int state;
 
-    private final Pattern datePattern;
-    private final Pattern timePattern;
-    private final Pattern[] keyPattern;
-    private final Pattern[] valuePattern;
-    private final Pattern tablePattern;
-    private final Pattern hexcharPattern;
-    private final Pattern defaultValuePattern;
+    /**
+     * timeout of the current state, every change of the state, the user
+     * list or the send queue and every expired timeout wakes up run()
+     */
+    private volatile HashedWheelTimer.Timeout stateTimeout;
+    private final HashedWheelTimer timer;
+    private final WakeupSignal wakeup;
 
-    private final SimpleDateFormat parseDateFormat;
+    private final TokenMatcher[] keyMatcher;
+    private final TokenMatcher[] valueMatcher;
 
     private final String updateChannel;
     private final String debugChannel;
 
-    private boolean acceptPublicUpdates;
+    /**
+     * per table, set when the SENDLIST of the table is complete
+     */
+    private final boolean[] acceptPublicUpdates;
     private final IRCMessageQueue[] publicUpdates;
 
     private final String dumpUserDBFileName;
@@ -81,7 +96,66 @@ public class IRCDDBApp implements IRCApplication, Runnable {
     private final Instant startupTime;
     private String reconnectReason;
 
-    private int channelTimeout;
+    /**
+     * newest update per table received from the channel or from a SENDLIST
+     * answer of the server, guarded by itself
+     */
+    private final Instant[] highWater;
+
+    /**
+     * time the connection was lost while in sync (state 7) or the session
+     * after a failover was lost, null otherwise
+     */
+    private volatile Instant syncLostAt;
+
+    /**
+     * only the server changed, no update was missed: no SENDLIST needed
+     */
+    private volatile boolean serverSwitched;
+
+    /**
+     * SENDLIST asks for the updates since the high-water mark only
+     */
+    private boolean resyncFromHighWater;
+
+    /**
+     * longest outage in seconds which is resynced from the high-water mark
+     */
+    private long resyncWindow;
+
+    /**
+     * SENDLIST per table, null if the table is not being synchronized.
+     * Guarded by sendListOrder.
+     */
+    private final SendListSync[] sendListSyncs;
+
+    /**
+     * table of every SENDLIST without answer, in the order they were sent.
+     * LIST_END and LIST_MORE do not name the table, the server answers the
+     * requests in this order.
+     */
+    private final ArrayDeque<SendListSync> sendListOrder = new ArrayDeque<>();
+
+    /**
+     * open cursors of SENDLIST answers per nick and table, the next page
+     * continues where the previous one ended. Only used by the IRC thread.
+     */
+    private final Map<String, SendListCursor> sendListCursors =
+            new LinkedHashMap<>(2 * SEND_LIST_CURSORS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SendListCursor> eldest) {
+                    if (size() > SEND_LIST_CURSORS) {
+                        eldest.getValue().rows.close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * re-armed by every IRCDDB message in the channel
+     */
+    private volatile HashedWheelTimer.Timeout channelTimeout;
 
 
     private String rptrLocation;
@@ -95,35 +169,39 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
         sendQ = null;
         currentServer = null;
-        acceptPublicUpdates = false;
-
         numberOfTables = numTables;
         numberOfTablesToSync = numTables;
 
         publicUpdates = new IRCMessageQueue[numberOfTables];
+        highWater = new Instant[numberOfTables];
+        acceptPublicUpdates = new boolean[numberOfTables];
+        sendListSyncs = new SendListSync[numberOfTables];
 
         for (int i = 0; i < numberOfTables; i++) {
-            publicUpdates[i] = new IRCMessageQueue();
+            publicUpdates[i] = new IRCMessageQueue(PUBLIC_UPDATES_CAPACITY);
         }
 
 
         userListReset();
 
         state = 0;
-        timer = 0;
+        timer = HashedWheelTimer.getShared();
+        wakeup = new WakeupSignal();
+        stateTimeout = null;
         myNick = "none";
 
-        parseDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        parseDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        keyMatcher = new TokenMatcher[numberOfTables];
+        valueMatcher = new TokenMatcher[numberOfTables];
 
-        datePattern = Pattern.compile("20[0-9][0-9]-((1[0-2])|(0[1-9]))-((3[01])|([12][0-9])|(0[1-9]))");
-        timePattern = Pattern.compile("((2[0-3])|([01][0-9])):[0-5][0-9]:[0-5][0-9]");
-        tablePattern = Pattern.compile("[0-9]");
-        hexcharPattern = Pattern.compile("[0-9A-F]");
-        defaultValuePattern = Pattern.compile("[A-Z0-9_]{8}");
+        for (int i = 0; i < numberOfTables; i++) {
+            keyMatcher[i] = TokenMatcher.compile(k[i]);
+            valueMatcher[i] = TokenMatcher.compile(v[i]);
 
-        keyPattern = k;
-        valuePattern = v;
+            LOGGER.info("IRCDDBApp: table " + i + ": key " + k[i].pattern()
+                    + (keyMatcher[i].isCompiled() ? " (lookup table)" : " (regex)")
+                    + ", value " + v[i].pattern()
+                    + (valueMatcher[i].isCompiled() ? " (lookup table)" : " (regex)"));
+        }
 
         updateChannel = u_chan;
         debugChannel = dbg_chan;
@@ -132,8 +210,12 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
         startupTime = Instant.now();
         reconnectReason = "startup";
+        syncLostAt = null;
+        serverSwitched = false;
+        resyncFromHighWater = false;
+        resyncWindow = 300;
 
-        channelTimeout = 0;
+        channelTimeout = null;
 
         rptrLocation = null;
         rptrFrequencies = null;
@@ -145,6 +227,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         properties = p;
 
         numberOfTablesToSync = Integer.parseInt(properties.getProperty("ddb_num_tables_sync", "2"));
+        resyncWindow = Long.parseLong(properties.getProperty("ddb_resync_window", "300"));
 
         rptrInfoURL = properties.getProperty("rptr_info_url", "").trim().replaceAll("[^\\p{Graph}]", "");
 
@@ -215,12 +298,14 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         UserObject u = new UserObject(nick, name, host);
 
         user.put(nick, u);
+        wakeup.signal();
 
         if (extApp != null) {
             extApp.userJoin(nick, name, host);
 
             if (debugChannel != null) {
                 IRCMessage m2 = new IRCMessage();
+                m2.priority = IRCMessage.PRIORITY_DEBUG;
                 m2.command = "PRIVMSG";
                 m2.numParams = 2;
                 m2.params[0] = debugChannel;
@@ -242,6 +327,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
                 if (debugChannel != null) {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_DEBUG;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = debugChannel;
@@ -265,14 +351,21 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
                 if (currentServer.equals(nick)) {
                     // currentServer = null;
+                    if (state == 7) {
+                        // still joined, the channel updates keep coming
+                        serverSwitched = true;
+                    } else {
+                        disablePublicUpdates();
+                    }
                     state = 2;  // choose new server
-                    timer = 200;
-                    acceptPublicUpdates = false;
+                    startStateTimer(200);
                     reconnectReason = nick + " left channel";
                 }
             }
         }
 
+        // after the state change, run() must see the new state
+        wakeup.signal();
     }
 
     public void userListReset() {
@@ -328,57 +421,83 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 extApp.userChanOp(nick, op);
             }
             u.setOp(op);
+            wakeup.signal();
         }
     }
 
 
-    IRCDDBExtApp.UpdateResult processUpdate(int tableID, Scanner s, String ircUser, String msg) {
-        if (s.hasNext(datePattern)) {
-            String d = s.next(datePattern);
+    IRCDDBExtApp.UpdateResult processUpdate(int tableID, UpdateTokenizer s, String ircUser, String msg) {
+        if (!s.nextUpdate(keyMatcher[tableID], valueMatcher[tableID])) {
+            return null;
+        }
 
-            if (s.hasNext(timePattern)) {
-                String t = s.next(timePattern);
+        Instant dbDate = TimestampCodec.parse(s.getDate(), s.getTime());
 
+        if (dbDate == null) {
+            return null;
+        }
 
-                Instant dbDate;
+        if (extApp != null) {
+            boolean fromServer = (ircUser != null) && ircUser.equals(currentServer);
 
-                try {
-                    dbDate = parseDateFormat.parse(d + " " + t).toInstant();
-                } catch (ParseException e) {
-                    dbDate = null;
-                }
+            if ((ircUser == null) || fromServer) {
+                updateHighWater(tableID, dbDate);
+            }
 
-                if ((dbDate != null) && s.hasNext(keyPattern[tableID])) {
-                    String key = s.next(keyPattern[tableID]);
+            IRCDDBExtApp.UpdateResult result = extApp.dbUpdate(tableID, dbDate, s.getKey(), s.getValue(), ircUser, msg);
 
+            if (fromServer) {
+                sendListRow(tableID, dbDate);
+            }
+            return result;
+        }
 
-                    if (s.hasNext(valuePattern[tableID])) {
-                        String value = s.next(valuePattern[tableID]);
+        return null;
+    }
 
-                        if (extApp != null) {
-                            return extApp.dbUpdate(tableID, dbDate, key, value, ircUser, msg);
-                        }
-                    }
-                }
+    private void updateHighWater(int tableID, Instant d) {
+        synchronized (highWater) {
+            if ((highWater[tableID] == null) || d.isAfter(highWater[tableID])) {
+                highWater[tableID] = d;
             }
         }
+    }
 
-        return null;
+    private Instant getHighWater(int tableID) {
+        synchronized (highWater) {
+            return highWater[tableID];
+        }
     }
 
     void enablePublicUpdates() {
-        acceptPublicUpdates = true;
-
         for (int i = (numberOfTables - 1); i >= 0; i--) {
-            while (publicUpdates[i].messageAvailable()) {
-                IRCMessage m = publicUpdates[i].getMessage();
+            enablePublicUpdates(i);
+        }
+    }
+
+    /**
+     * The table has caught up, process the buffered channel updates and
+     * the following ones right away.
+     */
+    private void enablePublicUpdates(int tableID) {
+        acceptPublicUpdates[tableID] = true;
 
-                String msg = m.params[1];
+        while (publicUpdates[tableID].messageAvailable()) {
+            IRCMessage m = publicUpdates[tableID].getMessage();
 
-                Scanner s = new Scanner(msg);
+            UpdateTokenizer s = new UpdateTokenizer(m.getParam(1));
 
-                processUpdate(i, s, null, null);
+            if (s.hasNextTableID()) {
+                s.nextTableID();  // the table ID was read by msgChannel
             }
+
+            processUpdate(tableID, s, null, null);
+        }
+    }
+
+    private void disablePublicUpdates() {
+        for (int i = 0; i < numberOfTables; i++) {
+            acceptPublicUpdates[i] = false;
         }
     }
 
@@ -387,28 +506,32 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         {
             int tableID = 0;
 
-            String msg = m.params[1];
+            String msg = m.getParam(1);
 
-            Scanner s = new Scanner(msg);
+            UpdateTokenizer s = new UpdateTokenizer(msg);
 
-            if (s.hasNext(tablePattern)) {
-                tableID = s.nextInt();
+            if (s.hasNextTableID()) {
+                tableID = s.nextTableID();
                 if ((tableID < 0) || (tableID >= numberOfTables)) {
                     LOGGER.debug("invalid table ID " + tableID);
                     return;
                 }
             }
 
-            if (s.hasNext(datePattern)) {
-                if (acceptPublicUpdates) {
+            if (s.hasNextDate()) {
+                if (acceptPublicUpdates[tableID]) {
                     processUpdate(tableID, s, null, null);
                 } else {
-                    publicUpdates[tableID].putMessage(m);
+                    m.detach(); // kept until enablePublicUpdates
+                    if (!publicUpdates[tableID].offerMessage(m)) {
+                        LOGGER.warn("public update buffer of table " + tableID + " full, update dropped");
+                    }
                 }
             } else {
                 if (msg.startsWith("IRCDDB ")) {
-                    channelTimeout = 0;
+                    restartChannelTimeout();
                 } else if (extApp != null) {
+                    m.materialize();
                     extApp.msgChannel(m);
                 }
             }
@@ -431,38 +554,34 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
 
     String checkPrivCommand(String msg) {
-        Scanner s = new Scanner(msg);
+        UpdateTokenizer s = new UpdateTokenizer(msg);
 
         String command = s.next();
 
         int tableID = 0;
 
-        if (s.hasNext(tablePattern)) {
-            tableID = s.nextInt();
+        if (s.hasNextTableID()) {
+            tableID = s.nextTableID();
         }
 
-        String d = s.next(datePattern);
-        String t = s.next(timePattern);
-
-        String key = s.next(keyPattern[tableID]);
-        String value = s.next(valuePattern[tableID]);
-
-        String dummy;
+        if (!s.nextUpdate(keyMatcher[tableID], valueMatcher[tableID])) {
+            throw new NoSuchElementException();
+        }
 
-        if (s.hasNext(hexcharPattern)) {
-            dummy = s.next(hexcharPattern);
+        if (s.hasNextHexChar()) {
+            s.next();
         }
 
-        if (s.hasNext(defaultValuePattern))  // rpt2
+        if (s.hasNextCallsign())  // rpt2
         {
-            dummy = s.next(defaultValuePattern);
+            s.next();
         } else {
             return null;
         }
 
-        if (s.hasNext(defaultValuePattern))  // urcall
+        if (s.hasNextCallsign())  // urcall
         {
-            String urcall = s.next(defaultValuePattern);
+            String urcall = s.next();
 
             if (urcall.startsWith("PRIV")) {
                 return urcall;
@@ -482,9 +601,9 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
     public void msgQuery(IRCMessage m) {
 
-        String msg = m.params[1];
+        String msg = m.getParam(1);
 
-        Scanner s = new Scanner(msg);
+        UpdateTokenizer s = new UpdateTokenizer(msg);
 
         String command;
 
@@ -496,8 +615,8 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
         int tableID = 0;
 
-        if (s.hasNext(tablePattern)) {
-            tableID = s.nextInt();
+        if (s.hasNextTableID()) {
+            tableID = s.nextTableID();
             if ((tableID < 0) || (tableID >= numberOfTables)) {
                 LOGGER.debug("invalid table ID " + tableID);
                 return;
@@ -507,24 +626,15 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         switch (command) {
             case "UPDATE" -> handleUpdate(m, s, tableID, msg);
             case "SENDLIST" -> handleSendList(m, s, tableID);
-            case "LIST_END" -> {
-                if (state == 5) // if in sendlist processing state
-                {
-                    state = 3;  // get next table
-                }
-            }
-            case "LIST_MORE" -> {
-                if (state == 5) // if in sendlist processing state
-                {
-                    state = 4;  // send next SENDLIST
-                }
-            }
+            case "LIST_END" -> handleListEnd(false);
+            case "LIST_MORE" -> handleListEnd(true);
             case "OP_BEG" -> handleOpBeg(m);
             case "QUIT_NOW" -> handleQuitNow(m);
             case "SHOW_PROPERTIES" -> handleShowProperties(m);
             case "IRCDDB" -> {
                 if (debugChannel != null) {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_DEBUG;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = debugChannel;
@@ -538,12 +648,132 @@ public class IRCDDBApp implements IRCApplication, Runnable {
             }
             default -> {
                 if (extApp != null) {
+                    m.materialize();
                     extApp.msgQuery(m);
                 }
             }
         }
     }
 
+    private void handleListEnd(boolean more) {
+        SendListSync sync;
+
+        synchronized (sendListOrder) {
+            if (state != 5) // if not in sendlist processing state
+            {
+                return;
+            }
+            sync = sendListOrder.pollFirst();
+        }
+
+        if (sync == null) {
+            return;
+        }
+
+        switch (sync.pageEnd(more)) {
+            case REQUEST -> {
+                // the next page starts at the last row received
+                Instant last = sync.getLastRow();
+
+                sendSendList(sync, (last != null) ? TimestampCodec.format(last)
+                        : getSendListTime(sync.getTableID()));
+            }
+            case DONE -> finishSendList(sync);
+            case WAIT -> {
+                // the next page was requested already
+            }
+        }
+    }
+
+    /**
+     * A row of the SENDLIST answer, the next page is requested as soon as
+     * the current one is complete.
+     */
+    private void sendListRow(int tableID, Instant d) {
+        SendListSync sync;
+
+        synchronized (sendListOrder) {
+            sync = sendListSyncs[tableID];
+        }
+
+        if ((state == 5) && (sync != null) && sync.row(d)) {
+            sendSendList(sync, TimestampCodec.format(d));
+        }
+    }
+
+    private void sendSendList(SendListSync sync, String begin) {
+        synchronized (sendListOrder) {
+            if (sendListSyncs[sync.getTableID()] != sync) {
+                return;  // cancelled
+            }
+
+            int n = sync.request();
+
+            IRCMessage m = new IRCMessage();
+            m.priority = IRCMessage.PRIORITY_SYNC;
+            m.command = "PRIVMSG";
+            m.numParams = 2;
+            m.params[0] = currentServer;
+            m.params[1] = "SENDLIST" + getTableIDString(sync.getTableID(), true) + " " + begin
+                    + ((n != SendListSync.DEFAULT_PAGE_SIZE) ? (" " + n) : "");
+
+            // the order of the queue is the order of the answers
+            sendListOrder.addLast(sync);
+
+            IRCMessageQueue q = getSendQ();
+            if (q != null) {
+                q.putMessage(m);
+            }
+        }
+    }
+
+    /**
+     * The SENDLIST of a table is complete, its channel updates are processed
+     * from now on. After the last table: next state.
+     */
+    private void finishSendList(SendListSync sync) {
+        boolean last = true;
+
+        synchronized (sendListOrder) {
+            int tableID = sync.getTableID();
+
+            if (sendListSyncs[tableID] != sync) {
+                return;  // cancelled
+            }
+            sync.cancel();
+            sendListSyncs[tableID] = null;
+
+            for (SendListSync o : sendListSyncs) {
+                if (o != null) {
+                    last = false;
+                    break;
+                }
+            }
+        }
+
+        enablePublicUpdates(sync.getTableID());
+
+        if (last) {
+            state = 6;  // end of sendlist
+            wakeup.signal();
+        }
+    }
+
+    /**
+     * Stops all SENDLISTs, answers which are still on the way are ignored.
+     */
+    private void cancelSendLists() {
+        synchronized (sendListOrder) {
+            for (int i = 0; i < numberOfTables; i++) {
+                if (sendListSyncs[i] != null) {
+                    sendListSyncs[i].cancel();
+                    sendListSyncs[i] = null;
+                }
+            }
+            sendListOrder.clear();
+        }
+    }
+
     private void handleOpBeg(IRCMessage m) {
         UserObject me = user.get(myNick);
         UserObject other = user.get(m.getPrefixNick()); // nick of other user
@@ -552,6 +782,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         if ((me != null) && (other != null) && me.isOp() && !other.isOp()
                 && other.getNick().startsWith("s-") && me.getNick().startsWith("s-")) {
             IRCMessage m2 = new IRCMessage();
+            m2.priority = IRCMessage.PRIORITY_CONTROL;
             m2.command = "MODE";
             m2.numParams = 3;
             m2.params[0] = updateChannel;
@@ -606,6 +837,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 && other.getNick().startsWith("u-")) {
 
             IRCMessage m2 = new IRCMessage();
+            m2.priority = IRCMessage.PRIORITY_CONTROL;
             m2.command = "QUIT";
             m2.numParams = 1;
             m2.params[0] = "QUIT_NOW sent by " + other.getNick();
@@ -615,17 +847,18 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 q.putMessage(m2);
             }
 
-            timer = 3;
+            startStateTimer(3);
             state = 11;  // exit
+            wakeup.signal();
             reconnectReason = "QUIT_NOW received";
         }
     }
 
-    private void handleUpdate(IRCMessage m, Scanner s, int tableID, String msg) {
+    private void handleUpdate(IRCMessage m, UpdateTokenizer s, int tableID, String msg) {
         UserObject other = user.get(m.getPrefixNick()); // nick of other user
 
 
-        if (s.hasNext(datePattern) &&
+        if (s.hasNextDate() &&
                 (other != null)) {
             IRCDDBExtApp.UpdateResult result = processUpdate(tableID, s, other.getNick(), msg);
 
@@ -642,7 +875,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                     m2.numParams = 2;
                     m2.params[0] = updateChannel;
                     m2.params[1] = getTableIDString(tableID, false) +
-                            parseDateFormat.format(Date.from(result.getNewObj().getModTime())) + " " +
+                            TimestampCodec.format(result.getNewObj().getModTime()) + " " +
                             result.getNewObj().getKey() + " " + result.getNewObj().getValue() + "  (from: " + m.getPrefixNick() + ")";
 
                     IRCMessageQueue q = getSendQ();
@@ -670,7 +903,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                         m2.numParams = 2;
                         m2.params[0] = updateChannel;
                         m2.params[1] = getTableIDString(2, false) +
-                                parseDateFormat.format(result.getNewObj().getModTime()) + " " +
+                                TimestampCodec.format(result.getNewObj().getModTime()) + " " +
                                 result.getNewObj().getKey() + " " + setPriv + "  (from: " + m.getPrefixNick() + ")";
 
                         IRCMessageQueue q = getSendQ();
@@ -688,6 +921,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 if ((debugChannel != null) && (result.getModifiedLogLine() != null)
                         && (privCommand == null) && (!isSTNCall)) {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_DEBUG;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = debugChannel;
@@ -701,6 +935,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
             } else {
                 if (debugChannel != null) {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_DEBUG;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = debugChannel;
@@ -739,56 +974,98 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         return setPriv;
     }
 
-    private void handleSendList(IRCMessage m, Scanner s, int tableID) {
-        String answer = "LIST_END";
+    /**
+     * Cursor of a SENDLIST answer which has more pages.
+     */
+    private static final class SendListCursor {
+        final IRCDDBExtApp.DatabaseCursor rows;
+        IRCDDBExtApp.DatabaseObject pending;  // read, but not sent yet
+        Instant last;  // time of the last row sent
 
-        if (s.hasNext(datePattern)) {
-            String d = s.next(datePattern);
+        SendListCursor(IRCDDBExtApp.DatabaseCursor r) {
+            rows = r;
+        }
 
-            if (s.hasNext(timePattern)) {
-                String t = s.next(timePattern);
+        IRCDDBExtApp.DatabaseObject next() {
+            IRCDDBExtApp.DatabaseObject o = pending;
 
+            if (o != null) {
+                pending = null;
+                return o;
+            }
+            return rows.hasNext() ? rows.next() : null;
+        }
+    }
+
+    private void handleSendList(IRCMessage m, UpdateTokenizer s, int tableID) {
+        String answer = "LIST_END";
 
-                Instant dbDate;
+        if (s.hasNextDate()) {
+            String d = s.next();
 
-                try {
-                    dbDate = parseDateFormat.parse(d + " " + t).toInstant();
-                } catch (ParseException e) {
-                    dbDate = null;
-                }
+            if (s.hasNextTime()) {
+                String t = s.next();
+
+
+                Instant dbDate = TimestampCodec.parse(d, t);
 
                 if ((dbDate != null) && (extApp != null)) {
-                    final int NUM_ENTRIES = 30;
+                    int numEntries = SendListSync.DEFAULT_PAGE_SIZE;
 
-                    var l = extApp.getDatabaseObjects(tableID, dbDate, NUM_ENTRIES);
+                    if (s.hasNextInt()) {
+                        // page size requested by the client
+                        numEntries = Math.max(numEntries, Math.min(SendListSync.MAX_PAGE_SIZE, s.nextInt()));
+                    }
 
-                    int count = 0;
+                    String cursorKey = m.getPrefixNick() + " " + tableID;
+                    SendListCursor c = sendListCursors.remove(cursorKey);
 
-                    if (l != null) {
-                        for (IRCDDBExtApp.DatabaseObject o : l) {
-                            IRCMessage m3 = new IRCMessage(
-                                    m.getPrefixNick(),
-                                    "UPDATE" + getTableIDString(tableID, true) +
-                                            " " + parseDateFormat.format(o.getModTime()) + " "
-                                            + o.getKey() + " " + o.getValue());
+                    if ((c == null) || !dbDate.equals(c.last)) {
+                        // not the next page of the previous answer
+                        if (c != null) {
+                            c.rows.close();
+                        }
+                        c = new SendListCursor(extApp.openDatabaseCursor(tableID, dbDate));
+                    }
 
-                            IRCMessageQueue q = getSendQ();
-                            if (q != null) {
-                                q.putMessage(m3);
-                            }
+                    int count = 0;
+                    IRCDDBExtApp.DatabaseObject o;
+
+                    while ((o = c.next()) != null) {
+                        if ((count >= numEntries) && !o.getModTime().equals(c.last)) {
+                            // page full, rows with the same time are not split
+                            c.pending = o;
+                            answer = "LIST_MORE";
+                            break;
+                        }
+
+                        IRCMessage m3 = new IRCMessage(
+                                m.getPrefixNick(),
+                                "UPDATE" + getTableIDString(tableID, true) +
+                                        " " + TimestampCodec.format(o.getModTime()) + " "
+                                        + o.getKey() + " " + o.getValue());
+                        m3.priority = IRCMessage.PRIORITY_SYNC;  // same lane as LIST_END
 
-                            count++;
+                        IRCMessageQueue q = getSendQ();
+                        if (q != null) {
+                            q.putMessage(m3);
                         }
+
+                        c.last = o.getModTime();
+                        count++;
                     }
 
-                    if (count > NUM_ENTRIES) {
-                        answer = "LIST_MORE";
+                    if (c.pending != null) {
+                        sendListCursors.put(cursorKey, c);  // kept for the next SENDLIST
+                    } else {
+                        c.rows.close();
                     }
                 }
             }
         }
 
         IRCMessage m2 = new IRCMessage();
+        m2.priority = IRCMessage.PRIORITY_SYNC;
         m2.command = "PRIVMSG";
         m2.numParams = 2;
         m2.params[0] = m.getPrefixNick();
@@ -826,7 +1103,14 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
 
     public synchronized void setSendQ(IRCMessageQueue s) {
+        if ((s == null) && (state == 7)) {
+            syncLostAt = Instant.now();
+        } else if (s == null) {
+            switchFailed();
+        }
+
         sendQ = s;
+        wakeup.signal();
 
         if (extApp != null) {
             extApp.setSendQ(s);
@@ -837,6 +1121,34 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         return sendQ;
     }
 
+    /**
+     * The send queue was switched to the standby session, which has another
+     * nick: announce it to a server and repeat an unfinished SENDLIST.
+     * Public updates keep being processed meanwhile.
+     */
+    void linkSwitched() {
+        if ((state >= 2) && (state <= 7)) {
+            serverSwitched = (state == 7);
+            reconnectReason = "failover";
+            state = 2;
+            startStateTimer(200);
+            wakeup.signal();
+        }
+    }
+
+    /**
+     * The session after a failover was lost before it found a server:
+     * updates may be missed from now on, the next session needs a SENDLIST.
+     */
+    private void switchFailed() {
+        if (serverSwitched) {
+            if (syncLostAt == null) {
+                syncLostAt = Instant.now();
+            }
+            serverSwitched = false;
+        }
+    }
+
 
     String getLastEntryTime(int tableID) {
 
@@ -845,7 +1157,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
             Instant d = extApp.getLastEntryDate(tableID);
 
             if (d != null) {
-                return parseDateFormat.format(d);
+                return TimestampCodec.format(d);
             }
         }
 
@@ -853,17 +1165,74 @@ public class IRCDDBApp implements IRCApplication, Runnable {
     }
 
 
+    /**
+     * @return start time of the SENDLIST: the high-water mark after a short
+     * outage, else the last entry of the database
+     */
+    private String getSendListTime(int tableID) {
+        Instant hw = getHighWater(tableID);
+
+        if (resyncFromHighWater && (hw != null)) {
+            return TimestampCodec.format(hw);
+        }
+        return getLastEntryTime(tableID);
+    }
+
+    private Instant getSendListBegin(int tableID) {
+        Instant hw = getHighWater(tableID);
+
+        if (resyncFromHighWater && (hw != null)) {
+            return hw;
+        }
+        return (extApp != null) ? extApp.getLastEntryDate(tableID) : null;
+    }
+
+
+    private void startStateTimer(long seconds) {
+        HashedWheelTimer.Timeout t = stateTimeout;
+
+        if (t != null) {
+            t.cancel();
+        }
+        stateTimeout = timer.schedule(wakeup::signal, seconds, TimeUnit.SECONDS);
+    }
+
+    private void stopStateTimer() {
+        HashedWheelTimer.Timeout t = stateTimeout;
+
+        if (t != null) {
+            t.cancel();
+        }
+        stateTimeout = null;
+    }
+
+    private boolean stateTimerExpired() {
+        HashedWheelTimer.Timeout t = stateTimeout;
+
+        return (t == null) || t.isExpired();
+    }
+
+    private void restartChannelTimeout() {
+        HashedWheelTimer.Timeout t = channelTimeout;
+
+        if (t != null) {
+            t.cancel();
+        }
+        channelTimeout = timer.schedule(wakeup::signal, 600, TimeUnit.SECONDS);
+    }
+
+
     public void run() {
 
-        int dumpUserDBTimer = 60;
-        int sendlistTableID = 0;
+        HashedWheelTimer.Timeout dumpUserDBTimeout = null;
+
+        if (!dumpUserDBFileName.equals("none")) {
+            dumpUserDBTimeout = timer.schedule(wakeup::signal, 60, TimeUnit.SECONDS);
+        }
 
         while (true) {
 
-            if (timer > 0) {
-                timer--;
-            }
-            channelTimeout++;
+            int previousState = state;
 
             switch (state) {
                 case 0:  // wait for network to start
@@ -876,19 +1245,15 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 case 1:
                     // connect to db
                     state = 2;
-                    timer = 200;
+                    startStateTimer(200);
                     break;
 
                 case 2:   // choose server
-                    sendlistTableID = getState2SendlistTableID(sendlistTableID);
+                    getState2();
                     break;
 
                 case 3:
-                    sendlistTableID = getState3SendlistTableID(sendlistTableID);
-                    break;
-
-                case 4:
-                    getState4SendListTableId(sendlistTableID);
+                    getState3StartSendLists();
                     break;
 
                 case 5: // sendlist processing
@@ -906,48 +1271,45 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
                 case 10:
                     // disconnect db
+                    switchFailed();
                     state = 0;
-                    timer = 0;
-                    acceptPublicUpdates = false;
+                    stopStateTimer();
+                    cancelSendLists();
+                    disablePublicUpdates();
                     break;
 
                 case 11:
-                    if (timer == 0) {
+                    if (stateTimerExpired()) {
                         System.exit(0);
                     }
                     break;
             }
 
 
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                LOGGER.warn("sleep interrupted " + e);
-            }
+            if ((dumpUserDBTimeout != null) && dumpUserDBTimeout.isExpired()) {
+                long next = 300;
 
+                try (var writer = new OutputStreamWriter(new FileOutputStream(dumpUserDBFileName), UTF_8)) {
+                    for (UserObject o :  user.values()) {
+                        writer.append(o.getNick()).append(" ")
+                                .append(o.getName()).append(" ")
+                                .append(o.getHost()).append(" ")
+                                .append(Boolean.toString(o.isOp()))
+                                .append("\n");
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("dumpUser failed " + e);
+                } catch (java.util.ConcurrentModificationException e) {
+                    LOGGER.warn("dumpUser failed " + e);
+                    next = 3; // try again
+                }
 
-            if (!dumpUserDBFileName.equals("none")) {
-                if (dumpUserDBTimer <= 0) {
-                    dumpUserDBTimer = 300;
+                dumpUserDBTimeout = timer.schedule(wakeup::signal, next, TimeUnit.SECONDS);
+            }
 
-                    try (var writer = new OutputStreamWriter(new FileOutputStream(dumpUserDBFileName), UTF_8)) {
-                        for (UserObject o :  user.values()) {
-                            writer.append(o.getNick()).append(" ")
-                                    .append(o.getName()).append(" ")
-                                    .append(o.getHost()).append(" ")
-                                    .append(Boolean.toString(o.isOp()))
-                                    .append("\n");
-                        }
-                    } catch (IOException e) {
-                        LOGGER.warn("dumpUser failed " + e);
-                    } catch (java.util.ConcurrentModificationException e) {
-                        LOGGER.warn("dumpUser failed " + e);
-                        dumpUserDBTimer = 3; // try again
-                    }
 
-                } else {
-                    dumpUserDBTimer--;
-                }
+            if (state == previousState) {
+                wakeup.await(WakeupSignal.FOREVER);
             }
         }
     }
@@ -957,7 +1319,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
             state = 10; // disconnect DB
             reconnectReason = "getSendQ in state 7";
         } else {
-            if (channelTimeout > 600) // 10 minutes with no IRCDDB msg in channel
+            if ((channelTimeout != null) && channelTimeout.isExpired()) // 10 minutes with no IRCDDB msg in channel
             {
                 state = 10;
                 reconnectReason = "timeout waiting for IRCDDB msg";
@@ -978,6 +1340,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 if ((other != null) && !me.isOp() && other.isOp()
                         && other.getNick().startsWith("s-") && me.getNick().startsWith("s-")) {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_CONTROL;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = other.getNick();
@@ -993,7 +1356,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 LOGGER.debug("IRCDDBApp: state=6");
                 enablePublicUpdates();
                 state = 7;
-                channelTimeout = 0;
+                restartChannelTimeout();
             }
         }
     }
@@ -1002,11 +1365,26 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         if (getSendQ() == null) {
             state = 10; // disconnect DB
             reconnectReason = "getSendQ in state 5";
-        } else if (timer == 0) {
+            return;
+        }
+
+        int timedOut = -1;
+
+        synchronized (sendListOrder) {
+            for (SendListSync sync : sendListSyncs) {
+                if ((sync != null) && sync.isTimedOut()) {
+                    timedOut = sync.getTableID();
+                    break;
+                }
+            }
+        }
+
+        if (timedOut >= 0) {
             state = 10;
-            reconnectReason = "timeout in state 5";
+            reconnectReason = "timeout in state 5 table " + timedOut;
 
             IRCMessage m = new IRCMessage();
+            m.priority = IRCMessage.PRIORITY_CONTROL;
             m.command = "QUIT";
             m.numParams = 1;
             m.params[0] = "timeout SENDLIST";
@@ -1018,62 +1396,59 @@ public class IRCDDBApp implements IRCApplication, Runnable {
         }
     }
 
-    private void getState4SendListTableId(int sendlistTableID) {
+    /**
+     * Starts the SENDLIST of every table which needs one, all at the same
+     * time. The other tables take the channel updates right away.
+     */
+    private void getState3StartSendLists() {
         if (getSendQ() == null) {
             state = 10; // disconnect DB
-            reconnectReason = "getSendQ in state 4";
-        } else {
-            if (extApp.needsDatabaseUpdate(sendlistTableID)) {
-                IRCMessage m = new IRCMessage();
-                m.command = "PRIVMSG";
-                m.numParams = 2;
-                m.params[0] = currentServer;
-                m.params[1] = "SENDLIST" + getTableIDString(sendlistTableID, true)
-                        + " " + getLastEntryTime(sendlistTableID);
+            reconnectReason = "getSendQ in state 3";
+            return;
+        }
 
-                IRCMessageQueue q = getSendQ();
-                if (q != null) {
-                    q.putMessage(m);
-                }
+        List<SendListSync> started = new ArrayList<>();
 
-                state = 5; // wait for answers
-            } else {
-                state = 3; // don't send SENDLIST for this table, go to next table
+        synchronized (sendListOrder) {
+            for (int i = Math.min(numberOfTablesToSync, numberOfTables) - 1; i >= 0; i--) {
+                if (extApp.needsDatabaseUpdate(i)) {
+                    LOGGER.debug("IRCDDBApp: state=3 tableID=" + i);
+                    // 15 minutes max for update
+                    sendListSyncs[i] = new SendListSync(i, getSendListBegin(i),
+                            timer.schedule(wakeup::signal, 900, TimeUnit.SECONDS));
+                    started.add(sendListSyncs[i]);
+                }
             }
+
+            state = started.isEmpty() ? 6 : 5;  // wait for answers
         }
-    }
 
-    private int getState3SendlistTableID(int sendlistTableID) {
-        if (getSendQ() == null) {
-            state = 10; // disconnect DB
-            reconnectReason = "getSendQ in state 3";
-        } else {
-            sendlistTableID--;
-            if (sendlistTableID < 0) {
-                state = 6; // end of sendlist
-            } else {
-                LOGGER.debug("IRCDDBApp: state=3 tableID=" + sendlistTableID);
-                state = 4; // send "SENDLIST"
-                timer = 900; // 15 minutes max for update
+        for (int i = 0; i < numberOfTables; i++) {
+            if (!acceptPublicUpdates[i] && (sendListSyncs[i] == null)) {
+                enablePublicUpdates(i);
             }
         }
-        return sendlistTableID;
+
+        for (SendListSync sync : started) {
+            sendSendList(sync, getSendListTime(sync.getTableID()));
+        }
     }
 
-    private int getState2SendlistTableID(int sendlistTableID) {
+    private void getState2() {
         LOGGER.debug("IRCDDBApp: state=2 choose new 's-'-user");
         if (getSendQ() == null) {
             state = 10;
             reconnectReason = "getSendQ in state 2";
         } else {
             if (findServerUser()) {
-                sendlistTableID = numberOfTablesToSync;
+                cancelSendLists();
 
                 IRCMessage m2 = new IRCMessage();
+                m2.priority = IRCMessage.PRIORITY_SYNC;
                 m2.command = "PRIVMSG";
                 m2.numParams = 2;
                 m2.params[0] = currentServer;
-                m2.params[1] = "IRCDDB " + parseDateFormat.format(Date.from(startupTime)) + " " +
+                m2.params[1] = "IRCDDB " + TimestampCodec.format(startupTime) + " " +
                         reconnectReason;
 
                 IRCMessageQueue q = getSendQ();
@@ -1083,6 +1458,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
                 if (rptrLocation != null) {
                     m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_SYNC;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = currentServer;
@@ -1099,6 +1475,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                     for (i = 0; i < numRptrFreq; i++) {
                         if (rptrFrequencies[i] != null) {
                             m2 = new IRCMessage();
+                            m2.priority = IRCMessage.PRIORITY_SYNC;
                             m2.command = "PRIVMSG";
                             m2.numParams = 2;
                             m2.params[0] = currentServer;
@@ -1113,6 +1490,7 @@ public class IRCDDBApp implements IRCApplication, Runnable {
 
                 if ((rptrInfoURL != null) && (!rptrInfoURL.isEmpty())) {
                     m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_SYNC;
                     m2.command = "PRIVMSG";
                     m2.numParams = 2;
                     m2.params[0] = currentServer;
@@ -1124,16 +1502,30 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 }
 
 
-                if (extApp != null) {
-                    state = 3; // next: send "SENDLIST"
-                } else {
+                if (extApp == null) {
                     state = 6; // next: enablePublicUpdates
+                } else if (serverSwitched) {
+                    LOGGER.info("IRCDDBApp: new server " + currentServer + ", no updates missed, no SENDLIST");
+                    state = 6;
+                } else {
+                    Instant lost = syncLostAt;
+
+                    resyncFromHighWater = (lost != null)
+                            && (Duration.between(lost, Instant.now()).getSeconds() <= resyncWindow);
+                    if (resyncFromHighWater) {
+                        LOGGER.info("IRCDDBApp: outage of " + Duration.between(lost, Instant.now()).getSeconds()
+                                + " s, SENDLIST from the high-water mark");
+                    }
+                    state = 3; // next: send "SENDLIST"
                 }
-            } else if (timer == 0) {
+                serverSwitched = false;
+                syncLostAt = null;
+            } else if (stateTimerExpired()) {
                 state = 10;
                 reconnectReason = "timeout in state 2";
 
                 IRCMessage m = new IRCMessage();
+                m.priority = IRCMessage.PRIORITY_CONTROL;
                 m.command = "QUIT";
                 m.numParams = 1;
                 m.params[0] = "no op user with 's-' found.";
@@ -1144,7 +1536,6 @@ public class IRCDDBApp implements IRCApplication, Runnable {
                 }
             }
         }
-        return sendlistTableID;
     }
 
 
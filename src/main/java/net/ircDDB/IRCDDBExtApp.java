@@ -24,6 +24,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package net.ircDDB;
 
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.regex.Pattern;
@@ -118,6 +119,16 @@ public interface IRCDDBExtApp extends IRCApplication, Runnable
 		}
 	}
 
+	/**
+	 * Rows of a table in the order of their time. The cursor stays open
+	 * between the pages of a SENDLIST answer.
+	 */
+	interface DatabaseCursor extends Iterator<DatabaseObject>, AutoCloseable
+	{
+		@Override
+		void close();
+	}
+
 	boolean setParams( Properties p,  int numberOfTables,
 		Pattern[] keyPattern, Pattern[] valuePattern );
 
@@ -126,6 +137,16 @@ public interface IRCDDBExtApp extends IRCApplication, Runnable
 	List<DatabaseObject> getDatabaseObjects(
 		int tableID, Instant beginDate, int numberOfObjects );
 
+	/**
+	 * Rows from beginDate on. The default reads pages with
+	 * getDatabaseObjects, applications with an index can return a cursor
+	 * which does not query again from beginDate for every page.
+	 */
+	default DatabaseCursor openDatabaseCursor( int tableID, Instant beginDate )
+	{
+		return new DatabaseListCursor(this, tableID, beginDate);
+	}
+
 	Instant getLastEntryDate(int tableID);
 
 	boolean needsDatabaseUpdate(int tableID);
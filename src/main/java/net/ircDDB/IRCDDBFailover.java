@@ -0,0 +1,280 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import net.ircDDB.irc.IRCMessage;
+import net.ircDDB.irc.IRCMessageQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hot standby: two independent IRC sessions, each with its own link.
+ * The primary link is connected to the application. The standby link stays
+ * joined, keeps its own user list and buffers the channel messages of the
+ * servers. When the primary connection fails, the standby is promoted
+ * immediately: the application gets its user list, the buffered channel
+ * messages it did not see on the old link and its send queue, without
+ * going through the disconnected states.
+ * <p>
+ * The old primary reconnects and becomes the standby.
+ */
+public class IRCDDBFailover {
+    private static final Logger LOGGER = LogManager.getLogger(IRCDDBFailover.class);
+
+    /**
+     * channel messages kept by the standby link
+     */
+    private static final int STANDBY_BUFFER_SIZE = 1000;
+
+    /**
+     * channel messages of the servers seen on the primary link, remembered to
+     * drop duplicates. The text is the key: the UPDATE lines carry their
+     * timestamp, so the same text is the same update.
+     */
+    private static final int DELIVERED_SIZE = 4096;
+
+    private final IRCDDBApp app;
+    private final Link[] links = {new Link(0), new Link(1)};
+
+    /**
+     * guarded by this
+     */
+    private Link primary;
+
+    private final Map<String, Boolean> delivered = new LinkedHashMap<>(DELIVERED_SIZE * 2, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DELIVERED_SIZE;
+        }
+    };
+
+    IRCDDBFailover(IRCDDBApp a) {
+        app = a;
+        primary = null;
+    }
+
+    IRCApplication getLink(int i) {
+        return links[i];
+    }
+
+    private static final class UserEntry {
+        final String name;
+        final String host;
+        boolean op;
+
+        UserEntry(String n, String h) {
+            name = n;
+            host = h;
+        }
+    }
+
+    private final class Link implements IRCApplication {
+        private final int id;
+
+        // state of the session, guarded by IRCDDBFailover.this
+        private IRCMessageQueue sendQ;
+        private String nick;
+        private String topic;
+        private final Map<String, UserEntry> users = new HashMap<>();
+        private final ArrayDeque<IRCMessage> buffer = new ArrayDeque<>();
+
+        Link(int i) {
+            id = i;
+        }
+
+        public void userJoin(String n, String name, String host) {
+            synchronized (IRCDDBFailover.this) {
+                users.put(n, new UserEntry(name, host));
+
+                if (this == primary) {
+                    app.userJoin(n, name, host);
+                }
+            }
+        }
+
+        public void userLeave(String n) {
+            synchronized (IRCDDBFailover.this) {
+                users.remove(n);
+
+                if (this == primary) {
+                    app.userLeave(n);
+                }
+            }
+        }
+
+        public void userChanOp(String n, boolean op) {
+            synchronized (IRCDDBFailover.this) {
+                UserEntry u = users.get(n);
+
+                if (u != null) {
+                    u.op = op;
+                }
+
+                if (this == primary) {
+                    app.userChanOp(n, op);
+                }
+            }
+        }
+
+        public void userListReset() {
+            synchronized (IRCDDBFailover.this) {
+                users.clear();
+
+                if (this == primary) {
+                    app.userListReset();
+                }
+            }
+        }
+
+        public void msgChannel(IRCMessage m) {
+            synchronized (IRCDDBFailover.this) {
+                if (this == primary) {
+                    if (m.getPrefixNick().startsWith("s-")) {
+                        // only what the standby buffers, chat would evict these
+                        delivered.put(m.getParam(1), Boolean.TRUE);
+                    }
+                    app.msgChannel(m);
+                } else if (m.getPrefixNick().startsWith("s-")) {
+                    m.detach(); // kept until promotion
+                    if (buffer.size() >= STANDBY_BUFFER_SIZE) {
+                        buffer.removeFirst();
+                    }
+                    buffer.addLast(m);
+                }
+            }
+        }
+
+        public void msgQuery(IRCMessage m) {
+            synchronized (IRCDDBFailover.this) {
+                if (this == primary) {
+                    app.msgQuery(m);
+                } else {
+                    LOGGER.debug("standby link " + id + ": query ignored");
+                }
+            }
+        }
+
+        public void setCurrentNick(String n) {
+            synchronized (IRCDDBFailover.this) {
+                nick = n;
+
+                if (this == primary) {
+                    app.setCurrentNick(n);
+                }
+            }
+        }
+
+        public void setTopic(String t) {
+            synchronized (IRCDDBFailover.this) {
+                topic = t;
+
+                if (this == primary) {
+                    app.setTopic(t);
+                }
+            }
+        }
+
+        public void setSendQ(IRCMessageQueue s) {
+            synchronized (IRCDDBFailover.this) {
+                sendQ = s;
+
+                if (s == null) {
+                    buffer.clear();
+
+                    if (this == primary) {
+                        failover();
+                    }
+                } else if (primary == null) {
+                    promote(this);
+                } else if (this != primary) {
+                    LOGGER.info("IRCDDBFailover: link " + id + " is standby");
+                }
+            }
+        }
+
+        public IRCMessageQueue getSendQ() {
+            synchronized (IRCDDBFailover.this) {
+                return sendQ;
+            }
+        }
+    }
+
+    /**
+     * The primary lost its connection, switch to the standby if it is joined.
+     */
+    private void failover() {
+        Link standby = (primary == links[0]) ? links[1] : links[0];
+
+        if (standby.sendQ != null) {
+            LOGGER.info("IRCDDBFailover: primary link " + primary.id + " failed, switching to link " + standby.id);
+            promote(standby);
+            app.linkSwitched();
+        } else {
+            LOGGER.info("IRCDDBFailover: primary link " + primary.id + " failed, no standby");
+            primary = null;
+            app.setSendQ(null);
+        }
+    }
+
+    private void promote(Link l) {
+        primary = l;
+
+        app.setCurrentNick(l.nick);
+        if (l.topic != null) {
+            app.setTopic(l.topic);
+        }
+
+        app.userListReset();
+        for (Map.Entry<String, UserEntry> e : l.users.entrySet()) {
+            UserEntry u = e.getValue();
+
+            app.userJoin(e.getKey(), u.name, u.host);
+            if (u.op) {
+                app.userChanOp(e.getKey(), true);
+            }
+        }
+
+        app.setSendQ(l.sendQ);
+
+        int replayed = 0;
+        int duplicates = 0;
+
+        while (!l.buffer.isEmpty()) {
+            IRCMessage m = l.buffer.removeFirst();
+
+            if (delivered.put(m.getParam(1), Boolean.TRUE) != null) {
+                duplicates++;
+            } else {
+                app.msgChannel(m);
+                replayed++;
+            }
+        }
+
+        LOGGER.info("IRCDDBFailover: link " + l.id + " is primary, " + replayed
+                + " buffered messages replayed, " + duplicates + " duplicates dropped");
+    }
+}
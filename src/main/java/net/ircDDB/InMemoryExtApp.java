@@ -0,0 +1,345 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import net.ircDDB.irc.IRCMessage;
+import net.ircDDB.irc.IRCMessageQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+/**
+ * Database application which keeps the tables in memory, selected with
+ * {@code ext_app=net.ircDDB.InMemoryExtApp}. The tables are empty after
+ * a start and are filled by the SENDLIST synchronization.
+ * <p>
+ * Every table has a map from key to entry and an index of the entries
+ * ordered by time, then key. An update with the same time replaces the row
+ * in the entry, the key stays in the index. Updates, the last entry date and the start of a
+ * list are found in logarithmic time; the rows of a list are read from
+ * the index without copying the table.
+ * <p>
+ * An update with a time before the time of the stored row and the same
+ * row again are ignored.
+ * With three or more tables, table 2 holds the privacy flags: keys with
+ * the value {@code P_______} there are hidden from the log.
+ */
+public class InMemoryExtApp implements IRCDDBExtApp {
+    private static final Logger LOGGER = LogManager.getLogger(InMemoryExtApp.class);
+
+    /**
+     * last entry date of an empty table, the dates of SENDLIST start with 20
+     */
+    private static final Instant EMPTY_TABLE_DATE = Instant.parse("2000-01-01T00:00:00Z");
+
+    private static final int PRIVACY_TABLE = 2;
+    private static final String PRIVATE_VALUE = "P_______";
+
+    /**
+     * place of a key in the index, the row changes when an update has the
+     * same time
+     */
+    private static final class Entry {
+        final Instant modTime;
+        final String key;
+        volatile DatabaseObject row;
+
+        Entry(Instant d, String k, DatabaseObject o) {
+            modTime = d;
+            key = k;
+            row = o;
+        }
+    }
+
+    private static final Comparator<Entry> TIME_ORDER =
+            Comparator.comparing((Entry e) -> e.modTime).thenComparing(e -> e.key);
+
+    private static final class Table {
+        final ConcurrentHashMap<String, Entry> rows = new ConcurrentHashMap<>();
+        final ConcurrentSkipListSet<Entry> index = new ConcurrentSkipListSet<>(TIME_ORDER);
+    }
+
+    private Table[] tables;
+    private volatile IRCMessageQueue sendQ;
+
+    public InMemoryExtApp() {
+        tables = new Table[0];
+        sendQ = null;
+    }
+
+    @Override
+    public boolean setParams(Properties p, int numberOfTables, Pattern[] keyPattern, Pattern[] valuePattern) {
+        tables = new Table[numberOfTables];
+
+        for (int i = 0; i < numberOfTables; i++) {
+            tables[i] = new Table();
+        }
+
+        LOGGER.info("InMemoryExtApp: " + numberOfTables + " tables");
+        return true;
+    }
+
+    private Table getTable(int tableID) {
+        return ((tableID >= 0) && (tableID < tables.length)) ? tables[tableID] : null;
+    }
+
+    /**
+     * first row of the index at or after d
+     */
+    private static Entry indexStart(Instant d) {
+        return new Entry(d, "", null);
+    }
+
+    /**
+     * Stores the row unless the stored row of the key is newer or the same.
+     *
+     * @return old and new row, the new row is the old one if the update was
+     * ignored; null if there is no such table
+     */
+    UpdateResult update(int tableID, Instant d, String key, String value) {
+        Table t = getTable(tableID);
+
+        if (t == null) {
+            return null;
+        }
+
+        UpdateResult result = new UpdateResult();
+        DatabaseObject old;
+        DatabaseObject o;
+
+        synchronized (t) {
+            Entry e = t.rows.get(key);
+
+            old = (e != null) ? e.row : null;
+
+            if ((old != null) && (d.isBefore(old.getModTime())
+                    || (d.equals(old.getModTime()) && value.equals(old.getValue())))) {
+                o = old;  // older than the stored row or the same
+            } else {
+                o = new DatabaseObject();
+                o.setModTime(d);
+                o.setKey(key);
+                o.setValue(value);
+
+                if ((e != null) && e.modTime.equals(d)) {
+                    e.row = o;  // same place in the index
+                } else {
+                    Entry n = new Entry(d, key, o);
+
+                    // a list running at the same time sees the key at least once
+                    t.index.add(n);
+                    t.rows.put(key, n);
+                    if (e != null) {
+                        t.index.remove(e);
+                    }
+                }
+            }
+        }
+
+        result.setKeyWasNew(old == null);
+        result.setOldObj(old);
+        result.setNewObj(o);
+        return result;
+    }
+
+    /**
+     * @return current row of the key, null if there is none
+     */
+    DatabaseObject getRow(int tableID, String key) {
+        Table t = getTable(tableID);
+        Entry e = (t != null) ? t.rows.get(key) : null;
+
+        return (e != null) ? e.row : null;
+    }
+
+    @Override
+    public UpdateResult dbUpdate(int tableID, Instant d, String key, String value, String ircUser, String msg) {
+        UpdateResult result = update(tableID, d, key, value);
+
+        if (result == null) {
+            return null;
+        }
+
+        boolean hidden = isPrivate(key);
+
+        result.setHideFromLog(hidden);
+        if (!hidden && (result.getNewObj() != result.getOldObj())) {
+            DatabaseObject o = result.getNewObj();
+
+            result.setModifiedLogLine(TimestampCodec.format(o.getModTime()) + " " + key + " " + o.getValue());
+        }
+        return result;
+    }
+
+    private boolean isPrivate(String key) {
+        Table t = getTable(PRIVACY_TABLE);
+
+        if (t == null) {
+            return false;
+        }
+
+        Entry e = t.rows.get(key);
+
+        return (e != null) && PRIVATE_VALUE.equals(e.row.getValue());
+    }
+
+    /**
+     * Rows from beginDate on, at least numberOfObjects if the table has
+     * them. Rows with the same time as the last one are added, a list
+     * never ends within the rows of one time.
+     */
+    @Override
+    public List<DatabaseObject> getDatabaseObjects(int tableID, Instant beginDate, int numberOfObjects) {
+        Table t = getTable(tableID);
+
+        if (t == null) {
+            return Collections.emptyList();
+        }
+
+        List<DatabaseObject> l = new ArrayList<>(Math.max(0, Math.min(numberOfObjects, 1000)));
+
+        for (Entry e : t.index.tailSet(indexStart(beginDate), true)) {
+            if ((l.size() >= numberOfObjects) && !e.modTime.equals(l.get(l.size() - 1).getModTime())) {
+                break;
+            }
+            l.add(e.row);
+        }
+        return l;
+    }
+
+    /**
+     * Iterates the index, the rows are not copied. Updates during the
+     * list are returned when their new time is after the current row.
+     */
+    @Override
+    public DatabaseCursor openDatabaseCursor(int tableID, Instant beginDate) {
+        Table t = getTable(tableID);
+        Iterator<Entry> i = (t != null)
+                ? t.index.tailSet(indexStart(beginDate), true).iterator()
+                : Collections.emptyIterator();
+
+        return new DatabaseCursor() {
+            private Iterator<Entry> rows = i;
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public DatabaseObject next() {
+                if (!rows.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return rows.next().row;
+            }
+
+            @Override
+            public void close() {
+                rows = Collections.emptyIterator();
+            }
+        };
+    }
+
+    @Override
+    public Instant getLastEntryDate(int tableID) {
+        Table t = getTable(tableID);
+
+        if (t == null) {
+            return null;
+        }
+
+        Iterator<Entry> i = t.index.descendingIterator();
+
+        return i.hasNext() ? i.next().modTime : EMPTY_TABLE_DATE;
+    }
+
+    @Override
+    public boolean needsDatabaseUpdate(int tableID) {
+        return getTable(tableID) != null;
+    }
+
+    @Override
+    public void setCurrentServerNick(String nick) {
+    }
+
+    @Override
+    public void userJoin(String nick, String name, String host) {
+    }
+
+    @Override
+    public void userLeave(String nick) {
+    }
+
+    @Override
+    public void userChanOp(String nick, boolean op) {
+    }
+
+    @Override
+    public void userListReset() {
+    }
+
+    @Override
+    public void msgChannel(IRCMessage m) {
+    }
+
+    @Override
+    public void msgQuery(IRCMessage m) {
+    }
+
+    @Override
+    public void setCurrentNick(String nick) {
+    }
+
+    @Override
+    public void setTopic(String topic) {
+    }
+
+    @Override
+    public void setSendQ(IRCMessageQueue s) {
+        sendQ = s;
+    }
+
+    @Override
+    public IRCMessageQueue getSendQ() {
+        return sendQ;
+    }
+
+    /**
+     * Nothing to do in the background, the tables are only changed by
+     * dbUpdate.
+     */
+    @Override
+    public void run() {
+    }
+}
@@ -0,0 +1,517 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Database application which keeps the tables in memory like
+ * {@link InMemoryExtApp} and writes every stored update to a log on disk,
+ * selected with {@code ext_app=net.ircDDB.LogStoreExtApp}.
+ * <p>
+ * Every table has a directory in ddb_store_dir with segments of the log
+ * ({@code 00000001.log}, ...), one line {@code YYYY-MM-DD HH:MM:SS KEY VALUE}
+ * per update. A segment is closed when it reaches ddb_store_segment_size
+ * bytes. At the start the segments are read (memory-mapped) in their order
+ * and the tables are filled again, so getLastEntryDate returns the newest
+ * update on disk and SENDLIST only fetches the updates after it. An
+ * incomplete line at the end of a segment (no newline) is cut off, a
+ * damaged complete line is skipped with a warning. After a failed write
+ * the row is kept in memory and written again before the next line.
+ * <p>
+ * For every key the segment and offset of its live line is kept. A closed
+ * segment of which less than half of the lines are live is compacted in
+ * the background: its live lines are appended to the current segment in
+ * small batches, updates only wait for one batch, then the file is deleted.
+ */
+public class LogStoreExtApp extends InMemoryExtApp {
+    private static final Logger LOGGER = LogManager.getLogger(LogStoreExtApp.class);
+
+    private static final long COMPACT_INTERVAL = 60;  // seconds between the compaction runs
+    private static final int MIN_LIVE_PERCENT = 50;  // closed segments with fewer live lines are compacted
+    private static final long MIN_SEGMENT_SIZE = 4096;
+    private static final long MAX_SEGMENT_SIZE = 1L << 26;  // a segment is mapped as a whole for compaction
+    private static final int COMPACT_BATCH = 256;  // lines copied per lock of the table
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("[0-9]{8}\\.log");
+
+    private static final class Segment {
+        final int seq;
+        final Path path;
+        long size;
+        int lines;
+        int live;  // lines which hold the current row of their key
+
+        Segment(int s, Path p) {
+            seq = s;
+            path = p;
+            size = 0;
+            lines = 0;
+            live = 0;
+        }
+    }
+
+    /**
+     * Log of one table, all fields are used under the lock of the object.
+     */
+    private static final class TableLog {
+        final int tableID;
+        final Path dir;
+        final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+        /**
+         * segment (upper 32 bits) and offset of the live line of every key
+         */
+        final HashMap<String, Long> location = new HashMap<>();
+
+        /**
+         * keys whose current row could not be written, written again
+         * before the next line
+         */
+        final LinkedHashSet<String> unsaved = new LinkedHashSet<>();
+
+        Segment current;
+        FileChannel out;  // null after a write error, a new segment is started
+
+        TableLog(int table, Path d) {
+            tableID = table;
+            dir = d;
+            current = null;
+            out = null;
+        }
+    }
+
+    private TableLog[] logs;
+    private long segmentSize;
+
+    public LogStoreExtApp() {
+        logs = new TableLog[0];
+        segmentSize = 0;
+    }
+
+    @Override
+    public boolean setParams(Properties p, int numberOfTables, Pattern[] keyPattern, Pattern[] valuePattern) {
+        if (!super.setParams(p, numberOfTables, keyPattern, valuePattern)) {
+            return false;
+        }
+
+        Path dir = Paths.get(p.getProperty("ddb_store_dir", "ircddb-store"));
+        segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE,
+                Long.parseLong(p.getProperty("ddb_store_segment_size", "4194304"))));
+
+        logs = new TableLog[numberOfTables];
+
+        try {
+            for (int i = 0; i < numberOfTables; i++) {
+                logs[i] = open(i, dir.resolve("table" + i));
+            }
+        } catch (IOException e) {
+            LOGGER.error("LogStoreExtApp: cannot open " + dir + ": ", e);
+            return false;
+        }
+        return true;
+    }
+
+    private TableLog getLog(int tableID) {
+        return ((tableID >= 0) && (tableID < logs.length)) ? logs[tableID] : null;
+    }
+
+    private TableLog open(int tableID, Path dir) throws IOException {
+        Files.createDirectories(dir);
+
+        TableLog l = new TableLog(tableID, dir);
+        List<Path> files;
+
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(f -> SEGMENT_NAME.matcher(f.getFileName().toString()).matches())
+                    .sorted().toList();
+        }
+
+        int lines = 0;
+
+        synchronized (l) {
+            for (Path f : files) {
+                Segment seg = new Segment(Integer.parseInt(f.getFileName().toString().substring(0, 8)), f);
+
+                l.segments.put(seg.seq, seg);
+                replay(l, seg);
+                lines += seg.lines;
+            }
+
+            Segment last = l.segments.isEmpty() ? null : l.segments.lastEntry().getValue();
+
+            if ((last != null) && (last.size < segmentSize)) {
+                l.out = FileChannel.open(last.path, StandardOpenOption.WRITE);
+                l.out.position(last.size);
+                l.current = last;
+            } else {
+                startSegment(l);
+            }
+        }
+
+        LOGGER.info("LogStoreExtApp: table " + tableID + ": " + lines + " lines in " + files.size()
+                + " segments, last entry " + TimestampCodec.format(getLastEntryDate(tableID)));
+        return l;
+    }
+
+    /**
+     * Reads the lines of a segment into the table.
+     */
+    private void replay(TableLog l, Segment seg) throws IOException {
+        long end = 0;
+
+        try (FileChannel c = FileChannel.open(seg.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+            int start = 0;
+
+            while (start < b.limit()) {
+                int nl = indexOfNewline(b, start);
+
+                if (nl < 0) {
+                    break;  // incomplete line at the end
+                }
+
+                String[] r = parseLine(b, start, nl);
+
+                seg.lines++;
+                if (r == null) {
+                    LOGGER.warn("LogStoreExtApp: " + seg.path + ": damaged line at " + start + ", skipped");
+                } else {
+                    UpdateResult result = update(l.tableID, TimestampCodec.parse(r[0], r[1]), r[2], r[3]);
+
+                    if (result.getNewObj() != result.getOldObj()) {
+                        setLive(l, r[2], seg, start);
+                    }
+                }
+                start = nl + 1;
+            }
+            end = start;
+
+            if (end < c.size()) {
+                LOGGER.warn("LogStoreExtApp: " + seg.path + ": incomplete line at " + end + ", cut off");
+                c.truncate(end);
+            }
+        }
+        seg.size = end;
+    }
+
+    private static int indexOfNewline(ByteBuffer b, int from) {
+        for (int i = from; i < b.limit(); i++) {
+            if (b.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return date, time, key and value of the line, null if it is damaged
+     */
+    private static String[] parseLine(ByteBuffer b, int start, int end) {
+        byte[] bytes = new byte[end - start];
+
+        b.get(start, bytes);
+
+        String s = new String(bytes, StandardCharsets.UTF_8);
+
+        if ((s.length() < 23) || (s.charAt(10) != ' ') || (s.charAt(19) != ' ')) {
+            return null;
+        }
+
+        int space = s.indexOf(' ', 20);
+
+        if ((space <= 20) || (space == (s.length() - 1)) || (s.indexOf(' ', space + 1) >= 0)) {
+            return null;
+        }
+
+        String[] r = {s.substring(0, 10), s.substring(11, 19), s.substring(20, space), s.substring(space + 1)};
+
+        return (TimestampCodec.parse(r[0], r[1]) != null) ? r : null;
+    }
+
+    private static long location(Segment seg, long offset) {
+        return ((long) seg.seq << 32) | offset;
+    }
+
+    /**
+     * The line at offset in seg is the current row of key now.
+     */
+    private static void setLive(TableLog l, String key, Segment seg, long offset) {
+        Long old = l.location.put(key, location(seg, offset));
+
+        if (old != null) {
+            Segment s = l.segments.get((int) (old >>> 32));
+
+            if (s != null) {
+                s.live--;
+            }
+        }
+        seg.live++;
+    }
+
+    private void startSegment(TableLog l) throws IOException {
+        if (l.out != null) {
+            l.out.force(false);
+            l.out.close();
+            l.out = null;
+        }
+
+        int seq = l.segments.isEmpty() ? 1 : (l.segments.lastKey() + 1);
+        Segment seg = new Segment(seq, l.dir.resolve(String.format("%08d.log", seq)));
+
+        l.out = FileChannel.open(seg.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        l.segments.put(seq, seg);
+        l.current = seg;
+    }
+
+    private void append(TableLog l, String key, byte[] line) throws IOException {
+        if ((l.out == null) || ((l.current.size > 0) && ((l.current.size + line.length) > segmentSize))) {
+            startSegment(l);
+        }
+
+        Segment seg = l.current;
+        long offset = seg.size;
+        ByteBuffer b = ByteBuffer.wrap(line);
+
+        try {
+            while (b.hasRemaining()) {
+                l.out.write(b);
+            }
+        } catch (IOException e) {
+            l.out.close();
+            l.out = null;  // the segment may end with a part of the line
+            throw e;
+        }
+
+        seg.size += line.length;
+        seg.lines++;
+        setLive(l, key, seg, offset);
+    }
+
+    private static byte[] line(DatabaseObject o) {
+        return (TimestampCodec.format(o.getModTime()) + " " + o.getKey() + " " + o.getValue() + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the current rows of the keys of a failed write. No later line
+     * is on disk before them, so the newest time on disk never passes a
+     * row which is missing there.
+     */
+    private void writeUnsaved(TableLog l) throws IOException {
+        int n = l.unsaved.size();
+
+        for (Iterator<String> i = l.unsaved.iterator(); i.hasNext(); ) {
+            String key = i.next();
+            DatabaseObject o = getRow(l.tableID, key);
+
+            if (o != null) {
+                append(l, key, line(o));
+            }
+            i.remove();
+        }
+
+        if (n > 0) {
+            LOGGER.info("LogStoreExtApp: table " + l.tableID + ": " + n + " rows of failed writes written");
+        }
+    }
+
+    @Override
+    public UpdateResult dbUpdate(int tableID, Instant d, String key, String value, String ircUser, String msg) {
+        TableLog l = getLog(tableID);
+
+        if (l == null) {
+            return null;
+        }
+
+        synchronized (l) {
+            UpdateResult result = super.dbUpdate(tableID, d, key, value, ircUser, msg);
+
+            if ((result != null) && (result.getNewObj() != result.getOldObj())) {
+                try {
+                    writeUnsaved(l);
+                    append(l, key, line(result.getNewObj()));
+                } catch (IOException e) {
+                    l.unsaved.add(key);
+                    LOGGER.error("LogStoreExtApp: table " + tableID + ": write failed, "
+                            + l.unsaved.size() + " rows not written: ", e);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compacts the closed segments with too many replaced lines.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(COMPACT_INTERVAL * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (TableLog l : logs) {
+                List<Segment> segs = new ArrayList<>();
+
+                synchronized (l) {
+                    for (Segment seg : l.segments.values()) {
+                        if ((seg != l.current) && ((seg.live * 100L) < (seg.lines * (long) MIN_LIVE_PERCENT))) {
+                            segs.add(seg);
+                        }
+                    }
+                }
+
+                for (Segment seg : segs) {
+                    try {
+                        compact(l, seg);
+                    } catch (IOException e) {
+                        LOGGER.error("LogStoreExtApp: table " + l.tableID + ": compaction of "
+                                + seg.path + " failed: ", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Line of a segment being compacted, copied if it is still live.
+     */
+    private static final class Candidate {
+        final int offset;
+        final String key;
+        final byte[] line;
+
+        Candidate(int o, String k, byte[] b) {
+            offset = o;
+            key = k;
+            line = b;
+        }
+    }
+
+    /**
+     * Copies the live lines of a closed segment to the current one and
+     * deletes it. The segment is read without the lock, the lock is only
+     * taken for every COMPACT_BATCH lines, so updates wait for one batch.
+     */
+    private void compact(TableLog l, Segment seg) throws IOException {
+        int lines;
+        long size;
+
+        synchronized (l) {
+            lines = seg.lines;
+            size = seg.size;  // a closed segment does not change
+        }
+
+        int kept = 0;
+        List<Candidate> batch = new ArrayList<>(COMPACT_BATCH);
+
+        try (FileChannel c = FileChannel.open(seg.path, StandardOpenOption.READ)) {
+            MappedByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int start = 0;
+
+            while (start < b.limit()) {
+                int nl = indexOfNewline(b, start);
+
+                if (nl < 0) {
+                    break;
+                }
+
+                String[] r = parseLine(b, start, nl);
+
+                if (r != null) {  // damaged lines are dropped
+                    byte[] line = new byte[nl + 1 - start];
+
+                    b.get(start, line);
+                    batch.add(new Candidate(start, r[2], line));
+
+                    if (batch.size() >= COMPACT_BATCH) {
+                        kept += copyLive(l, seg, batch);
+                        batch.clear();
+                    }
+                }
+                start = nl + 1;
+            }
+        }
+        kept += copyLive(l, seg, batch);
+
+        synchronized (l) {
+            if (l.out == null) {
+                throw new IOException("current segment not writable");
+            }
+
+            // the copies are on disk before the segment is gone
+            l.out.force(false);
+            l.segments.remove(seg.seq);
+            Files.delete(seg.path);
+        }
+
+        LOGGER.info("LogStoreExtApp: table " + l.tableID + ": " + seg.path.getFileName()
+                + " compacted, " + kept + " of " + lines + " lines kept");
+    }
+
+    /**
+     * Appends the candidates which are still the live line of their key,
+     * a key updated meanwhile has its live line elsewhere.
+     *
+     * @return number of lines copied
+     */
+    private int copyLive(TableLog l, Segment seg, List<Candidate> batch) throws IOException {
+        int kept = 0;
+
+        synchronized (l) {
+            for (Candidate x : batch) {
+                Long live = l.location.get(x.key);
+
+                if ((live != null) && (live == location(seg, x.offset))) {
+                    append(l, x.key, x.line);
+                    kept++;
+                }
+            }
+        }
+        return kept;
+    }
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -90,6 +91,30 @@ public class Main {
 
         appthr.start();
 
+        boolean hotStandby = Boolean.parseBoolean(properties.getProperty("irc_hot_standby", "false").trim());
+
+        if (hotStandby && (n.length < 2)) {
+            LOGGER.error("irc_hot_standby needs rptr_call, standby disabled");
+            hotStandby = false;
+        }
+
+        if (hotStandby) {
+            // each session gets its own half of the nick list
+            IRCDDBFailover failover = new IRCDDBFailover(app);
+            int half = n.length / 2;
+
+            startIRCClient(failover.getLink(0), properties, irc_channel, debug_channel, irc_name,
+                    Arrays.copyOfRange(n, 0, half), version);
+            startIRCClient(failover.getLink(1), properties, irc_channel, debug_channel, irc_name,
+                    Arrays.copyOfRange(n, half, n.length), version);
+        } else {
+            startIRCClient(app, properties, irc_channel, debug_channel, irc_name, n, version);
+        }
+    }
+
+    private static void startIRCClient(IRCApplication app, Properties properties, String irc_channel,
+                                       String debug_channel, String irc_name, String[] n,
+                                       StringBuilder version) {
         IRCClient irc = new IRCClient(app,
                 properties.getProperty("irc_server_name", "localhost"),
                 Integer.parseInt(properties.getProperty("irc_server_port", "9007")),
@@ -100,9 +125,10 @@ public class Main {
                 properties.getProperty("irc_password", "secret"),
                 version.toString());
 
+        irc.setParams(properties);
+
         Thread ircthr = new Thread(irc);
         ircthr.start();
-
     }
 
     private static void readPropertiesFile(Properties properties) {
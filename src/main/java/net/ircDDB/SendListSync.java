@@ -0,0 +1,242 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import net.ircDDB.irc.HashedWheelTimer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SENDLIST of one table. The next page starts at the last row of the
+ * previous one, so it is requested as soon as that row arrives, without
+ * waiting for LIST_MORE. The answers (rows and LIST_END or LIST_MORE)
+ * come in the order of the requests, the oldest outstanding request gets
+ * them.
+ * <p>
+ * The page size is requested from the server and follows the measured
+ * round trip time and row rate: a page should take several round trips
+ * to transfer. A server which ignores the requested size answers with
+ * pages of its own size, which is then used.
+ * <p>
+ * Every table has its own SendListSync and timeout, the tables are
+ * synchronized at the same time.
+ */
+final class SendListSync {
+    private static final Logger LOGGER = LogManager.getLogger(SendListSync.class);
+
+    static final int DEFAULT_PAGE_SIZE = 30;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_OUTSTANDING = 2;
+    private static final int PAGE_ROUND_TRIPS = 4;  // transfer time of a page in round trips
+    private static final long PROGRESS_INTERVAL = 10000;  // ms between progress messages
+
+    enum Next {
+        WAIT,  // answer of another request pending
+        REQUEST,  // send the next SENDLIST
+        DONE  // table complete
+    }
+
+    private static final class Request {
+        final long sentAt = System.nanoTime();
+        final int pageSize;
+        int rows;
+        long firstRowAt;
+        long lastRowAt;
+
+        Request(int n) {
+            pageSize = n;
+        }
+    }
+
+    private final int tableID;
+    private final Instant begin;
+    private final long startedAt;
+    private final HashedWheelTimer.Timeout timeout;
+    private final ArrayDeque<Request> outstanding = new ArrayDeque<>();
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private boolean fixedPageSize;
+    private long rttNanos;
+    private long rows;
+    private Instant lastRow;
+    private long lastProgressAt;
+
+    /**
+     * @param from start of the first SENDLIST, null if unknown
+     * @param t expires when the table took too long
+     */
+    SendListSync(int table, Instant from, HashedWheelTimer.Timeout t) {
+        tableID = table;
+        begin = from;
+        timeout = t;
+        startedAt = System.nanoTime();
+        lastProgressAt = startedAt;
+    }
+
+    int getTableID() {
+        return tableID;
+    }
+
+    boolean isTimedOut() {
+        return timeout.isExpired();
+    }
+
+    void cancel() {
+        timeout.cancel();
+    }
+
+    /**
+     * @return newest row received, null if there was none
+     */
+    synchronized Instant getLastRow() {
+        return lastRow;
+    }
+
+    /**
+     * A SENDLIST is sent.
+     *
+     * @return page size to request
+     */
+    synchronized int request() {
+        outstanding.addLast(new Request(pageSize));
+        return pageSize;
+    }
+
+    /**
+     * An UPDATE answer of the server.
+     *
+     * @return true if the page is complete and the next SENDLIST should be
+     * sent now, starting at this row
+     */
+    synchronized boolean row(Instant d) {
+        Request r = outstanding.peekFirst();
+
+        if (r == null) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+
+        if (r.rows == 0) {
+            r.firstRowAt = now;
+        }
+        r.lastRowAt = now;
+        r.rows++;
+        rows++;
+
+        if ((lastRow == null) || d.isAfter(lastRow)) {
+            lastRow = d;
+        }
+
+        return (r.rows == r.pageSize) && (outstanding.size() < MAX_OUTSTANDING);
+    }
+
+    /**
+     * LIST_MORE or LIST_END, the oldest outstanding request is answered.
+     */
+    synchronized Next pageEnd(boolean more) {
+        Request r = outstanding.pollFirst();
+
+        if (r == null) {
+            return Next.WAIT;
+        }
+
+        adapt(r, more);
+        progress(false);
+
+        if (!outstanding.isEmpty()) {
+            // the next page was already requested, its answer decides
+            return Next.WAIT;
+        }
+
+        if (more) {
+            return Next.REQUEST;
+        }
+
+        progress(true);
+        return Next.DONE;
+    }
+
+    private void adapt(Request r, boolean more) {
+        if (r.rows == 0) {
+            return;
+        }
+
+        long rtt = r.firstRowAt - r.sentAt;
+        rttNanos = (rttNanos == 0) ? rtt : ((rttNanos + rtt) / 2);
+
+        if (more && (r.rows < r.pageSize)) {
+            // the server does not know the page size parameter
+            if (!fixedPageSize) {
+                LOGGER.info("IRCDDBApp: SENDLIST table " + tableID + ": server page size " + r.rows);
+            }
+            fixedPageSize = true;
+            pageSize = r.rows;
+        }
+
+        if (fixedPageSize || (r.rows < 2)) {
+            return;
+        }
+
+        // rows per ns while the page was arriving, then the page which needs
+        // PAGE_ROUND_TRIPS round trips to arrive
+        double rate = (double) (r.rows - 1) / Math.max(1, r.lastRowAt - r.firstRowAt);
+        long n = Math.round(rate * rttNanos * PAGE_ROUND_TRIPS);
+
+        pageSize = (int) Math.max(DEFAULT_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, n));
+    }
+
+    private void progress(boolean done) {
+        long now = System.nanoTime();
+
+        if (!done && (TimeUnit.NANOSECONDS.toMillis(now - lastProgressAt) < PROGRESS_INTERVAL)) {
+            return;
+        }
+        lastProgressAt = now;
+
+        long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - startedAt));
+        StringBuilder b = new StringBuilder("IRCDDBApp: SENDLIST table ").append(tableID)
+                .append(done ? " done: " : ": ").append(rows).append(" rows, ")
+                .append((rows * 1000) / ms).append(" rows/s, page ").append(pageSize)
+                .append(", rtt ").append(TimeUnit.NANOSECONDS.toMillis(rttNanos)).append(" ms");
+
+        if (done) {
+            b.append(", ").append(ms).append(" ms");
+        } else if ((begin != null) && (lastRow != null)) {
+            // the rows come in the order of their time, which runs up to now
+            long covered = Duration.between(begin, lastRow).toMillis();
+            long total = Duration.between(begin, Instant.now()).toMillis();
+
+            if ((covered > 0) && (total > covered)) {
+                b.append(", ETA ").append((ms * (total - covered)) / covered / 1000).append(" s");
+            }
+        }
+
+        LOGGER.info(b.toString());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Timestamps of the IRCDDB messages, {@code yyyy-MM-dd HH:mm:ss} in UTC.
+ * Parsing and formatting is done with arithmetic on the characters, the
+ * results are the same as those of a lenient SimpleDateFormat
+ * (a day after the end of the month rolls over into the next month).
+ * <p>
+ * The last second parsed and the last second formatted are cached, the
+ * updates of a burst mostly have the same time.
+ * <p>
+ * All methods are thread-safe.
+ */
+final class TimestampCodec {
+
+    /**
+     * second, its text and its Instant, replaced as a whole
+     */
+    private static final class Second {
+        final long epochSecond;
+        final String text;
+        final Instant instant;
+
+        Second(long s, String t, Instant i) {
+            epochSecond = s;
+            text = t;
+            instant = i;
+        }
+    }
+
+    private static volatile Second lastParsed = new Second(0, "1970-01-01 00:00:00", Instant.EPOCH);
+    private static volatile Second lastFormatted = lastParsed;
+
+    private static final long MAX_FAST_FORMAT = 253402300799L;  // 9999-12-31 23:59:59
+
+    private static final SimpleDateFormat slowFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    static {
+        slowFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private TimestampCodec() {
+    }
+
+    /**
+     * @param date yyyy-MM-dd
+     * @param time HH:mm:ss
+     * @return null if the fields do not have this layout
+     */
+    static Instant parse(String date, String time) {
+        if ((date.length() != 10) || (time.length() != 8)) {
+            return null;
+        }
+
+        Second c = lastParsed;
+
+        if (c.text.startsWith(date) && c.text.startsWith(time, 11)) {
+            return c.instant;
+        }
+
+        int year = number(date, 0, 4);
+        int month = number(date, 5, 2);
+        int day = number(date, 8, 2);
+        int hour = number(time, 0, 2);
+        int minute = number(time, 3, 2);
+        int second = number(time, 6, 2);
+
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > 31)
+                || (date.charAt(4) != '-') || (date.charAt(7) != '-')
+                || (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 59)
+                || (time.charAt(2) != ':') || (time.charAt(5) != ':')) {
+            return null;
+        }
+
+        if (year < 1970) {
+            // SimpleDateFormat switches to the Julian calendar before 1582
+            synchronized (slowFormat) {
+                try {
+                    return slowFormat.parse(date + " " + time).toInstant();
+                } catch (ParseException e) {
+                    return null;
+                }
+            }
+        }
+
+        long s = ((daysFromCivil(year, month, 1) + day - 1) * 86400L) + (hour * 3600L) + (minute * 60L) + second;
+
+        c = new Second(s, date + " " + time, Instant.ofEpochSecond(s));
+        lastParsed = c;
+        return c.instant;
+    }
+
+    /**
+     * @return yyyy-MM-dd HH:mm:ss, parts of a second are cut off
+     */
+    static String format(Instant d) {
+        long s = d.getEpochSecond();
+        Second c = lastFormatted;
+
+        if (c.epochSecond == s) {
+            return c.text;
+        }
+
+        String text;
+
+        if ((s >= 0) && (s <= MAX_FAST_FORMAT)) {
+            text = formatFast(s);
+        } else {
+            synchronized (slowFormat) {
+                text = slowFormat.format(Date.from(d));
+            }
+        }
+
+        lastFormatted = new Second(s, text, null);
+        return text;
+    }
+
+    private static String formatFast(long s) {
+        long days = Math.floorDiv(s, 86400L);
+        int secs = (int) Math.floorMod(s, 86400L);
+
+        // civil from days, H. Hinnant
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - (era * 146097);
+        long yoe = (doe - (doe / 1460) + (doe / 36524) - (doe / 146096)) / 365;
+        long doy = doe - ((365 * yoe) + (yoe / 4) - (yoe / 100));
+        long mp = ((5 * doy) + 2) / 153;
+        int day = (int) (doy - (((153 * mp) + 2) / 5) + 1);
+        int month = (int) ((mp < 10) ? (mp + 3) : (mp - 9));
+        int year = (int) (yoe + (era * 400) + ((month <= 2) ? 1 : 0));
+
+        char[] b = new char[19];
+
+        digits(b, 0, year, 4);
+        b[4] = '-';
+        digits(b, 5, month, 2);
+        b[7] = '-';
+        digits(b, 8, day, 2);
+        b[10] = ' ';
+        digits(b, 11, secs / 3600, 2);
+        b[13] = ':';
+        digits(b, 14, (secs / 60) % 60, 2);
+        b[16] = ':';
+        digits(b, 17, secs % 60, 2);
+
+        return new String(b);
+    }
+
+    private static void digits(char[] b, int pos, int v, int n) {
+        for (int i = pos + n - 1; i >= pos; i--) {
+            b[i] = (char) ('0' + (v % 10));
+            v /= 10;
+        }
+    }
+
+    /**
+     * @return -1 if a character is not a digit
+     */
+    private static int number(String s, int pos, int n) {
+        int v = 0;
+
+        for (int i = pos; i < pos + n; i++) {
+            char c = s.charAt(i);
+
+            if ((c < '0') || (c > '9')) {
+                return -1;
+            }
+            v = (v * 10) + (c - '0');
+        }
+        return v;
+    }
+
+    /**
+     * days since 1970-01-01, proleptic Gregorian calendar, H. Hinnant
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = (month <= 2) ? (year - 1) : year;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - (era * 400);
+        long doy = ((153L * ((month > 2) ? (month - 3) : (month + 9))) + 2) / 5 + day - 1;
+        long doe = (yoe * 365) + (yoe / 4) - (yoe / 100) + doy;
+
+        return (era * 146097) + doe - 719468;
+    }
+}
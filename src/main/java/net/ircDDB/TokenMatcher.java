@@ -0,0 +1,308 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a whole token against ddb_key_patternN or ddb_value_patternN.
+ * <p>
+ * Patterns of fixed length made of character classes and literal
+ * characters, like the default {@code [A-Z0-9_]{8}}, are compiled into a
+ * lookup table per position. All other patterns are matched with
+ * java.util.regex.
+ */
+abstract class TokenMatcher {
+    private static final int MAX_LENGTH = 256;
+
+    /**
+     * @return true if s from start to end matches the whole pattern
+     */
+    abstract boolean matches(String s, int start, int end);
+
+    /**
+     * @return true if the pattern is matched by a lookup table
+     */
+    abstract boolean isCompiled();
+
+    static TokenMatcher compile(Pattern p) {
+        long[][] table = (p.flags() == 0) ? new Compiler(p.pattern()).compile() : null;
+
+        return (table != null) ? new Table(p, table) : new Regex(p);
+    }
+
+    /**
+     * Bit c of table[i] (c < 128) is set if character c is allowed at
+     * position i, bit 128 if characters >= 128 are allowed.
+     */
+    private static final class Table extends TokenMatcher {
+        private final Regex regex;
+        private final long[][] table;
+
+        Table(Pattern p, long[][] t) {
+            regex = new Regex(p);
+            table = t;
+        }
+
+        @Override
+        boolean matches(String s, int start, int end) {
+            if ((end - start) != table.length) {
+                // one code point for the regex, two chars here
+                return ((end - start) > table.length) && hasSurrogate(s, start, end)
+                        && regex.matches(s, start, end);
+            }
+
+            for (int i = 0; i < table.length; i++) {
+                char c = s.charAt(start + i);
+
+                if (c >= 128) {
+                    if (Character.isSurrogate(c)) {
+                        return regex.matches(s, start, end);
+                    }
+                    c = 128;
+                }
+
+                if ((table[i][c >>> 6] & (1L << c)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean hasSurrogate(String s, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (Character.isSurrogate(s.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean isCompiled() {
+            return true;
+        }
+    }
+
+    private static final class Regex extends TokenMatcher {
+        private final Pattern pattern;
+
+        Regex(Pattern p) {
+            pattern = p;
+        }
+
+        @Override
+        boolean matches(String s, int start, int end) {
+            // the bounds are set like Scanner does
+            return pattern.matcher(s).region(start, end)
+                    .useTransparentBounds(true).useAnchoringBounds(false).matches();
+        }
+
+        @Override
+        boolean isCompiled() {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts a sequence of atoms, each with an optional {n}. An atom is a
+     * literal character, \d, \w, an escaped punctuation character or a
+     * character class of these and ranges, optionally negated.
+     * Everything else (alternatives, groups, ., variable repetition,
+     * intersections, properties) is left to the regex.
+     */
+    private static final class Compiler {
+        private final String p;
+        private int pos;
+
+        Compiler(String pattern) {
+            p = pattern;
+            pos = 0;
+        }
+
+        /**
+         * @return null if the pattern is not supported
+         */
+        long[][] compile() {
+            List<long[]> positions = new ArrayList<>();
+
+            while (pos < p.length()) {
+                long[] atom = atom();
+
+                if (atom == null) {
+                    return null;
+                }
+
+                int n = count();
+
+                if ((n < 0) || ((positions.size() + n) > MAX_LENGTH)) {
+                    return null;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    positions.add(atom);
+                }
+            }
+
+            return positions.isEmpty() ? null : positions.toArray(new long[0][]);
+        }
+
+        private long[] atom() {
+            char c = p.charAt(pos++);
+            long[] set = new long[3];
+
+            if (c == '[') {
+                return charClass();
+            } else if (c == '\\') {
+                return escape(set) ? set : null;
+            } else if ((c < 128) && ("^$.|?*+()[]{}".indexOf(c) < 0)) {
+                add(set, c);
+                return set;
+            }
+            return null;
+        }
+
+        private long[] charClass() {
+            long[] set = new long[3];
+            boolean negated = false;
+            boolean first = true;
+
+            if ((pos < p.length()) && (p.charAt(pos) == '^')) {
+                negated = true;
+                pos++;
+            }
+
+            while (true) {
+                if (pos >= p.length()) {
+                    return null;
+                }
+
+                char c = p.charAt(pos++);
+
+                if ((c == ']') && !first) {
+                    break;
+                }
+                first = false;
+
+                if (c == '\\') {
+                    if (!escape(set)) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                if ((c >= 128) || ("[]&^".indexOf(c) >= 0)) {
+                    return null;
+                }
+
+                if ((c == '-') && (pos < p.length()) && (p.charAt(pos) != ']')) {
+                    return null;  // '-' only literal at the end
+                }
+
+                if ((pos + 1 < p.length()) && (p.charAt(pos) == '-') && (p.charAt(pos + 1) != ']')) {
+                    char to = p.charAt(pos + 1);
+
+                    if (!Character.isLetterOrDigit(c) || !Character.isLetterOrDigit(to) || (to >= 128) || (to < c)) {
+                        return null;
+                    }
+                    pos += 2;
+
+                    for (char x = c; x <= to; x++) {
+                        add(set, x);
+                    }
+                } else {
+                    add(set, c);
+                }
+            }
+
+            if (negated) {
+                for (int i = 0; i < set.length; i++) {
+                    set[i] = ~set[i];
+                }
+                set[2] &= 1L;  // only bit 128 is used in the last word
+            }
+            return set;
+        }
+
+        /**
+         * Escape after the backslash: \d, \w or a punctuation character.
+         */
+        private boolean escape(long[] set) {
+            if (pos >= p.length()) {
+                return false;
+            }
+
+            char c = p.charAt(pos++);
+
+            if (c == 'd') {
+                for (char x = '0'; x <= '9'; x++) {
+                    add(set, x);
+                }
+            } else if (c == 'w') {
+                for (char x = 0; x < 128; x++) {
+                    if (((x >= 'a') && (x <= 'z')) || ((x >= 'A') && (x <= 'Z'))
+                            || ((x >= '0') && (x <= '9')) || (x == '_')) {
+                        add(set, x);
+                    }
+                }
+            } else if ((c < 128) && !Character.isLetterOrDigit(c) && (c > ' ')) {
+                add(set, c);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return repetition of the atom, -1 if not supported
+         */
+        private int count() {
+            if ((pos >= p.length()) || (p.charAt(pos) != '{')) {
+                return 1;
+            }
+
+            int end = p.indexOf('}', pos);
+
+            if (end < 0) {
+                return -1;
+            }
+
+            String n = p.substring(pos + 1, end);
+
+            if (n.isEmpty() || (n.length() > 3) || !n.chars().allMatch(x -> (x >= '0') && (x <= '9'))) {
+                return -1;  // {n,m} and {n,}
+            }
+            pos = end + 1;
+
+            if ((pos < p.length()) && ((p.charAt(pos) == '?') || (p.charAt(pos) == '+'))) {
+                return -1;
+            }
+            return Integer.parseInt(n);
+        }
+
+        private static void add(long[] set, char c) {
+            set[c >>> 6] |= 1L << c;
+        }
+    }
+}
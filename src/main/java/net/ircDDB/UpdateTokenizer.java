@@ -0,0 +1,342 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Splits an IRCDDB message into tokens like java.util.Scanner with its
+ * default delimiter (whitespace), in one pass over the string.
+ * The fixed fields (table ID, date, time) are checked by hand, the key
+ * and value are matched once per token by a {@link TokenMatcher}.
+ * <p>
+ * {@link #nextUpdate} reads the fields of an update
+ * ({@code YYYY-MM-DD HH:MM:SS KEY VALUE}), they are kept in this object
+ * until the next call.
+ */
+final class UpdateTokenizer {
+    /**
+     * group separator of the default locale, looked up once
+     */
+    private static final char GROUPING_SEPARATOR =
+            DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getGroupingSeparator();
+
+    private final String s;
+
+    /**
+     * position after the last consumed token
+     */
+    private int pos;
+
+    /**
+     * bounds of the next token, tokenStart is -1 if it was not searched yet
+     */
+    private int tokenStart;
+    private int tokenEnd;
+
+    private String date;
+    private String time;
+    private String key;
+    private String value;
+
+    UpdateTokenizer(String msg) {
+        s = msg;
+        pos = 0;
+        tokenStart = -1;
+    }
+
+    private boolean findToken() {
+        if (tokenStart < 0) {
+            int i = pos;
+            int n = s.length();
+
+            while ((i < n) && Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+            tokenStart = i;
+
+            while ((i < n) && !Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+            tokenEnd = i;
+        }
+        return tokenEnd > tokenStart;
+    }
+
+    private String consume() {
+        String t = s.substring(tokenStart, tokenEnd);
+
+        pos = tokenEnd;
+        tokenStart = -1;
+        return t;
+    }
+
+    private int tokenLength() {
+        return tokenEnd - tokenStart;
+    }
+
+    private char tokenChar(int i) {
+        return s.charAt(tokenStart + i);
+    }
+
+    private boolean tokenDigit(int i) {
+        char c = tokenChar(i);
+
+        return (c >= '0') && (c <= '9');
+    }
+
+    private int tokenNumber(int i) {
+        return ((tokenChar(i) - '0') * 10) + (tokenChar(i + 1) - '0');
+    }
+
+    boolean hasNext() {
+        return findToken();
+    }
+
+    String next() {
+        if (!findToken()) {
+            throw new NoSuchElementException();
+        }
+        return consume();
+    }
+
+    boolean hasNext(Pattern p) {
+        // the bounds are set like Scanner does
+        return findToken() && p.matcher(s).region(tokenStart, tokenEnd)
+                .useTransparentBounds(true).useAnchoringBounds(false).matches();
+    }
+
+    String next(Pattern p) {
+        if (!hasNext(p)) {
+            throw new NoSuchElementException();
+        }
+        return consume();
+    }
+
+    boolean hasNext(TokenMatcher m) {
+        return findToken() && m.matches(s, tokenStart, tokenEnd);
+    }
+
+    /**
+     * [0-9]
+     */
+    boolean hasNextTableID() {
+        return findToken() && (tokenLength() == 1) && tokenDigit(0);
+    }
+
+    int nextTableID() {
+        if (!hasNextTableID()) {
+            throw new NoSuchElementException();
+        }
+        return consume().charAt(0) - '0';
+    }
+
+    /**
+     * 20[0-9][0-9]-((1[0-2])|(0[1-9]))-((3[01])|([12][0-9])|(0[1-9]))
+     */
+    boolean hasNextDate() {
+        if (!findToken() || (tokenLength() != 10)) {
+            return false;
+        }
+
+        if ((tokenChar(0) != '2') || (tokenChar(1) != '0') || !tokenDigit(2) || !tokenDigit(3)
+                || (tokenChar(4) != '-') || !tokenDigit(5) || !tokenDigit(6)
+                || (tokenChar(7) != '-') || !tokenDigit(8) || !tokenDigit(9)) {
+            return false;
+        }
+
+        int month = tokenNumber(5);
+        int day = tokenNumber(8);
+
+        return (month >= 1) && (month <= 12) && (day >= 1) && (day <= 31);
+    }
+
+    /**
+     * ((2[0-3])|([01][0-9])):[0-5][0-9]:[0-5][0-9]
+     */
+    boolean hasNextTime() {
+        if (!findToken() || (tokenLength() != 8)) {
+            return false;
+        }
+
+        if (!tokenDigit(0) || !tokenDigit(1) || (tokenChar(2) != ':')
+                || !tokenDigit(3) || !tokenDigit(4) || (tokenChar(5) != ':')
+                || !tokenDigit(6) || !tokenDigit(7)) {
+            return false;
+        }
+
+        return (tokenNumber(0) <= 23) && (tokenNumber(3) <= 59) && (tokenNumber(6) <= 59);
+    }
+
+    /**
+     * [0-9A-F]
+     */
+    boolean hasNextHexChar() {
+        if (!findToken() || (tokenLength() != 1)) {
+            return false;
+        }
+
+        char c = tokenChar(0);
+
+        return ((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'F'));
+    }
+
+    /**
+     * [A-Z0-9_]{8}
+     */
+    boolean hasNextCallsign() {
+        if (!findToken() || (tokenLength() != 8)) {
+            return false;
+        }
+
+        for (int i = 0; i < 8; i++) {
+            char c = tokenChar(i);
+
+            if (!(((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '_'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decimal number with optional sign in the range of int. Like Scanner,
+     * all Unicode digits and the group separator of the default locale
+     * (in groups of three) are accepted.
+     */
+    boolean hasNextInt() {
+        return findToken() && (parseInt() != null);
+    }
+
+    int nextInt() {
+        Integer i = findToken() ? parseInt() : null;
+
+        if (i == null) {
+            throw new NoSuchElementException();
+        }
+        consume();
+        return i;
+    }
+
+    private Integer parseInt() {
+        int n = tokenLength();
+        int i = 0;
+        boolean negative = false;
+
+        if ((tokenChar(0) == '-') || (tokenChar(0) == '+')) {
+            negative = (tokenChar(0) == '-');
+            i = 1;
+        }
+
+        if (i == n) {
+            return null;
+        }
+
+        int digits = 0;  // digits since the last separator
+        int groups = 0;
+        long v = 0;
+        boolean leadingZero = Character.isDigit(tokenChar(i)) && (Character.digit(tokenChar(i), 10) == 0);
+
+        for (; i < n; i++) {
+            char c = tokenChar(i);
+
+            if (Character.isDigit(c)) {
+                v = (v * 10) + Character.digit(c, 10);
+                digits++;
+
+                if (v > ((long) Integer.MAX_VALUE + 1)) {
+                    return null;  // out of range
+                }
+            } else if ((c == GROUPING_SEPARATOR) && (digits > 0) && ((groups == 0) ? (digits <= 3) : (digits == 3))) {
+                groups++;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+
+        if ((digits == 0) || ((groups > 0) && ((digits != 3) || leadingZero))) {
+            return null;
+        }
+
+        v = negative ? -v : v;
+
+        if (v > Integer.MAX_VALUE) {
+            return null;
+        }
+        return (int) v;
+    }
+
+    /**
+     * Reads date, time, key and value. Stops at the first field which does
+     * not match, like the hasNext/next calls on a Scanner would.
+     *
+     * @return false if a field is missing or does not match
+     */
+    boolean nextUpdate(TokenMatcher keyMatcher, TokenMatcher valueMatcher) {
+        date = null;
+        time = null;
+        key = null;
+        value = null;
+
+        if (!hasNextDate()) {
+            return false;
+        }
+        date = consume();
+
+        if (!hasNextTime()) {
+            return false;
+        }
+        time = consume();
+
+        if (!hasNext(keyMatcher)) {
+            return false;
+        }
+        key = consume();
+
+        if (!hasNext(valueMatcher)) {
+            return false;
+        }
+        value = consume();
+
+        return true;
+    }
+
+    String getDate() {
+        return date;
+    }
+
+    String getTime() {
+        return time;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to one of the addresses of a host (RFC 8305 style): attempts
+ * are started one after another with a short delay, without waiting for
+ * the previous one to fail. The first established connection wins, the
+ * other attempts are closed.
+ * <p>
+ * The connect time of every address is remembered, the next connect
+ * starts with the fastest address, addresses which failed come last.
+ */
+final class HappyEyeballsConnector {
+    private static final Logger LOGGER = LogManager.getLogger(HappyEyeballsConnector.class);
+
+    private static final long CONNECT_TIMEOUT = 5000;  // ms per attempt
+    private static final long ATTEMPT_DELAY = 250;  // ms until the next attempt is started
+    private static final long UNKNOWN_LATENCY = 250;  // ms assumed for addresses never tried
+
+    /**
+     * smoothed connect time per address in ms, a failure counts as CONNECT_TIMEOUT
+     */
+    private static final ConcurrentHashMap<InetAddress, Long> latency = new ConcurrentHashMap<>();
+
+    private static final class Attempt {
+        final InetAddress address;
+        final SocketChannel channel;
+        final long start;
+
+        Attempt(InetAddress a, SocketChannel c) {
+            address = a;
+            channel = c;
+            start = System.nanoTime();
+        }
+
+        long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    private HappyEyeballsConnector() {
+    }
+
+    /**
+     * @return connected channel in non-blocking mode, null if no address
+     * could be connected
+     */
+    static SocketChannel connect(String host, int port) {
+        InetAddress[] adr = Utils.getAddresses(host);
+
+        if (adr == null) {
+            return null;
+        }
+
+        try (Selector selector = Selector.open()) {
+            return connect(selector, order(adr), port);
+        } catch (IOException e) {
+            LOGGER.error("IRCClient/selector: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sorts by the remembered connect time, addresses with the same time keep
+     * the shuffled order. Then the address families are interleaved,
+     * starting with the family of the best address.
+     */
+    private static List<InetAddress> order(InetAddress[] adr) {
+        List<InetAddress> sorted = new ArrayList<>();
+
+        for (InetAddress a : adr) {
+            if (a instanceof Inet4Address || a instanceof Inet6Address) {
+                sorted.add(a);
+            }
+        }
+        sorted.sort(Comparator.comparingLong(a -> latency.getOrDefault(a, UNKNOWN_LATENCY)));
+
+        LinkedList<InetAddress> first = new LinkedList<>();
+        LinkedList<InetAddress> second = new LinkedList<>();
+
+        for (InetAddress a : sorted) {
+            if (a.getClass() == sorted.get(0).getClass()) {
+                first.add(a);
+            } else {
+                second.add(a);
+            }
+        }
+
+        List<InetAddress> result = new ArrayList<>(sorted.size());
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty()) {
+                result.add(first.removeFirst());
+            }
+            if (!second.isEmpty()) {
+                result.add(second.removeFirst());
+            }
+        }
+        return result;
+    }
+
+    private static SocketChannel connect(Selector selector, List<InetAddress> adr, int port) throws IOException {
+        SocketChannel winner = null;
+        int next = 0;
+        int pending = 0;
+        long nextStart = System.nanoTime();
+
+        try {
+            while ((winner == null) && ((next < adr.size()) || (pending > 0))) {
+                long now = System.nanoTime();
+
+                if ((next < adr.size()) && ((pending == 0) || (now >= nextStart))) {
+                    InetAddress a = adr.get(next++);
+
+                    nextStart = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY);
+                    try {
+                        winner = startAttempt(selector, a, port);
+                        pending++;
+                    } catch (IOException e) {
+                        LOGGER.warn("IRCClient/connect " + a.getHostAddress() + ": " + e.getMessage());
+                        record(a, CONNECT_TIMEOUT);
+                        nextStart = now;
+                    }
+                    continue;
+                }
+
+                long wait = (next < adr.size()) ? (nextStart - now) : TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY);
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                for (SelectionKey k : selector.selectedKeys()) {
+                    Attempt a = (Attempt) k.attachment();
+
+                    try {
+                        if (a.channel.finishConnect()) {
+                            winner = succeeded(a);
+                            break;
+                        }
+                    } catch (IOException e) {
+                        failed(a, e.getMessage());
+                        pending--;
+                        nextStart = now; // start the next attempt right away
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (winner == null) {
+                    for (SelectionKey k : selector.keys()) {
+                        Attempt a = (Attempt) k.attachment();
+
+                        if (k.isValid() && (a.elapsedMillis() >= CONNECT_TIMEOUT)) {
+                            failed(a, "timeout");
+                            pending--;
+                            nextStart = now;
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey k : selector.keys()) {
+                SocketChannel c = ((Attempt) k.attachment()).channel;
+
+                if (c != winner) {
+                    close(c);
+                }
+            }
+        }
+
+        return winner;
+    }
+
+    /**
+     * @return the channel if it connected immediately, null if the attempt is pending
+     */
+    private static SocketChannel startAttempt(Selector selector, InetAddress address, int port) throws IOException {
+        LOGGER.info("IRCClient/trying: " + address.getHostAddress());
+
+        SocketChannel c = SocketChannel.open();
+        try {
+            c.configureBlocking(false);
+
+            Attempt a = new Attempt(address, c);
+
+            if (c.connect(new InetSocketAddress(address, port))) {
+                return succeeded(a);
+            }
+            c.register(selector, SelectionKey.OP_CONNECT, a);
+        } catch (IOException e) {
+            close(c);
+            throw e;
+        }
+        return null;
+    }
+
+    private static SocketChannel succeeded(Attempt a) {
+        long ms = a.elapsedMillis();
+
+        LOGGER.info("IRCClient/connected: " + a.address.getHostAddress() + " (" + ms + " ms)");
+        record(a.address, ms);
+        return a.channel;
+    }
+
+    private static void failed(Attempt a, String reason) {
+        LOGGER.warn("IRCClient/connect " + a.address.getHostAddress() + ": " + reason);
+        record(a.address, CONNECT_TIMEOUT);
+        close(a.channel);  // also cancels the key
+    }
+
+    private static void record(InetAddress a, long ms) {
+        latency.merge(a, ms, (old, n) -> (old + n) / 2);
+    }
+
+    private static void close(SocketChannel c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOGGER.warn("IRCClient/channel.close: ", e);
+            }
+        }
+    }
+}
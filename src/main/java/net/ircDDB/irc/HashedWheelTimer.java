@@ -0,0 +1,214 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deadline scheduler shared by the IRC client and the application.
+ * <p>
+ * Timeouts are hashed into a wheel of buckets by their expiry tick, a
+ * single thread advances the wheel once per tick and only looks at the
+ * bucket of that tick. Scheduling and cancelling are O(1).
+ * The tasks run on the timer thread and must not block, usually they just
+ * give a {@link WakeupSignal}.
+ */
+public final class HashedWheelTimer implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(HashedWheelTimer.class);
+
+    private static HashedWheelTimer shared;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+
+    /**
+     * next tick to be processed, guarded by this
+     */
+    private long tick;
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean expired;
+
+        private Timeout(Runnable t, long d) {
+            task = t;
+            deadline = d;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * @return false if the timeout already expired
+         */
+        public boolean cancel() {
+            synchronized (HashedWheelTimer.this) {
+                if (expired) {
+                    return false;
+                }
+
+                if (bucket != null) {
+                    bucket.remove(this);
+                }
+                return true;
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        tickNanos = unit.toNanos(tickDuration);
+
+        int size = Integer.highestOneBit(Math.max(2, ticksPerWheel - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+        tick = 0;
+    }
+
+    /**
+     * The timer of the process, 100 ms resolution.
+     */
+    public static synchronized HashedWheelTimer getShared() {
+        if (shared == null) {
+            HashedWheelTimer t = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+            Thread thr = new Thread(t, "HashedWheelTimer");
+            thr.setDaemon(true);
+            thr.start();
+
+            shared = t;
+        }
+        return shared;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+
+        synchronized (this) {
+            long expiryTick = Math.max((t.deadline - startTime) / tickNanos, tick);
+
+            t.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(t);
+        }
+        return t;
+    }
+
+    public void run() {
+        List<Timeout> expired = new ArrayList<>();
+
+        while (true) {
+            long tickEnd;
+
+            synchronized (this) {
+                tickEnd = startTime + (tick + 1) * tickNanos;
+            }
+
+            long sleep;
+            while ((sleep = tickEnd - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            synchronized (this) {
+                Bucket b = wheel[(int) (tick & mask)];
+                Timeout t = b.head;
+
+                while (t != null) {
+                    Timeout next = t.next;
+
+                    if (t.remainingRounds <= 0) {
+                        b.remove(t);
+                        t.expired = true;
+                        expired.add(t);
+                    } else {
+                        t.remainingRounds--;
+                    }
+                    t = next;
+                }
+
+                tick++;
+            }
+
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("HashedWheelTimer/task: ", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -28,24 +28,31 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 
-import java.io.InputStream;
-import java.io.IOException;
+import java.util.Properties;
 
 
 public class IRCClient implements Runnable {
     private static final Logger LOGGER = LogManager.getLogger(IRCClient.class);
 
-    private IRCReceiver recv;
-    private Thread recvThread;
+    /**
+     * messages taken per round from each send lane, indexed by IRCMessage.PRIORITY_*
+     */
+    private static final int[] SEND_LANE_WEIGHTS = {8, 4, 2, 1};
 
     private final IRCApplication app;
 
     private final String host;
     private final int port;
     private final IRCProtocol proto;
-    private final SocketConnection socketConnection;
+    private IRCConnection connection;
     private IRCMessageQueue recvQ;
     private IRCMessageQueue sendQ;
+    private IRCMessagePool messagePool;
+    private IRCSender sender;
+    private int floodBurst;
+    private double floodRate;
+    private final WakeupSignal wakeup = new WakeupSignal();
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
 
 
     public IRCClient(IRCApplication a, String h, int p, String ch,
@@ -53,35 +60,51 @@ public class IRCClient implements Runnable {
         app = a;
         host = h;
         port = p;
-        proto = new IRCProtocol(a, ch, dbg_chan, n, u, pass, version);
-        socketConnection = new SocketConnection();
+        proto = new IRCProtocol(a, ch, dbg_chan, n, u, pass, version, wakeup);
+        connection = new SocketConnection();
     }
 
+    public void setParams(Properties p) {
+        String transport = p.getProperty("irc_transport", "stream").trim().toLowerCase();
 
-    boolean init() {
+        switch (transport) {
+            case "stream" -> connection = new SocketConnection();
+            case "nio" -> connection = new NioSocketConnection();
+            case "tls" -> connection = new TlsSocketConnection();
+            default -> LOGGER.error("invalid irc_transport: " + transport + " must be: stream, nio or tls");
+        }
 
-        if (socketConnection.initSocket(host, port)) return false;
+        int poolSize = Integer.parseInt(p.getProperty("irc_message_pool_size", "0"));
+        messagePool = (poolSize > 0) ? new IRCMessagePool(poolSize) : null;
 
-        InputStream is;
-        try {
-            is = socketConnection.getInputStream();
-        } catch (IOException e) {
-            LOGGER.error("IRCClient/getInputStream: ", e);
-            return false;
+        floodBurst = Integer.parseInt(p.getProperty("irc_flood_burst", "0"));
+        floodRate = Double.parseDouble(p.getProperty("irc_flood_rate", "0"));
+
+        if ((floodBurst > 0) && (floodRate <= 0)) {
+            LOGGER.error("invalid irc_flood_rate: " + floodRate + " flood control disabled");
+            floodBurst = 0;
         }
 
+        reconnectPolicy.setMaxDelay(1000L * Integer.parseInt(p.getProperty("irc_reconnect_max_delay", "60")));
+    }
+
+
+    boolean init() {
+
+        if (connection.initSocket(host, port)) return false;
 
         recvQ = new IRCMessageQueue();
-        sendQ = new IRCMessageQueue();
-        recv = new IRCReceiver(is, recvQ);
-
-        recvThread = new Thread(recv);
-        try {
-            recvThread.start();
-        } catch (IllegalThreadStateException e) {
-            LOGGER.error("IRCClient/Thread.start: ", e);
+        sendQ = new IRCMessageQueue(IRCMessageQueue.DEFAULT_CAPACITY, SEND_LANE_WEIGHTS);
+        recvQ.setConsumerWakeup(wakeup);
+
+        if (!connection.startReceiver(recvQ, messagePool)) {
             return false;
         }
+
+        TokenBucket floodControl = (floodBurst > 0) ? new TokenBucket(floodBurst, floodRate) : null;
+
+        sender = new IRCSender(connection, sendQ, wakeup, floodControl);
+        Thread.ofVirtual().name("IRCSender").start(sender);
         proto.setNetworkReady(true);
 
         return true;
@@ -94,18 +117,60 @@ public class IRCClient implements Runnable {
             app.userListReset();
         }
 
-        socketConnection.close();
+        // stops the sender, releases producers still holding a reference
+        // to the old queues
+        if (sendQ != null) {
+            sendQ.signalEOF();
+        }
+
+        connection.close();
+
+        if (recvQ != null) {
+            recvQ.signalEOF();
+        }
 
-        recv = null;
-        recvThread = null;
         recvQ = null;
         sendQ = null;
+        sender = null;
 
         proto.setNetworkReady(false);
     }
 
+    /**
+     * @return number of messages waiting to be sent, e.g. held back by
+     * flood control
+     */
+    public int getSendBacklog() {
+        IRCMessageQueue q = sendQ;
+
+        return (q != null) ? q.size() : 0;
+    }
+
+    IRCMessageQueue getRecvQ() {
+        return recvQ;
+    }
+
+    IRCMessageQueue getSendQ() {
+        return sendQ;
+    }
+
+    /**
+     * @return true if the sender of the current connection could not write
+     */
+    boolean writeFailed() {
+        return (sender != null) && sender.hasFailed();
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    WakeupSignal getWakeup() {
+        return wakeup;
+    }
+
     public void run() {
-        var machine = new IRCClientStateMachine(this, proto, recvQ, sendQ, socketConnection);
+        var machine = new IRCClientStateMachine(this, proto);
 
         while (true) {
             machine.doAct();
@@ -113,4 +178,3 @@ public class IRCClient implements Runnable {
 
     }
 }
-
@@ -24,20 +24,26 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection life cycle of the IRC client.
+ * Instead of polling, {@link #doAct()} blocks until a message is received,
+ * the connection signals EOF, a write failed or a deadline is reached.
+ * The send queue is written by the {@link IRCSender} of the connection.
+ */
 public class IRCClientStateMachine {
     private static final Logger LOGGER = LogManager.getLogger(IRCClientStateMachine.class);
 
     private final IRCClient client;
     private final IRCProtocol ircProtocol;
-    private final IRCMessageQueue recvQ;
-    private final IRCMessageQueue sendQ;
-    private final SocketConnection socketConnection;
+    private final WakeupSignal wakeup;
+    private final HashedWheelTimer timer;
+    private final ReconnectPolicy reconnectPolicy;
     /**
-     * Amount of cycles to skip the action - one cycle is 0.5s
+     * the current state is not acted on before it expired
      */
-    private int timer = 0;
+    private HashedWheelTimer.Timeout timeout;
     private State state = State.DISCONNECTED;
     private enum State {
         DISCONNECTED,
@@ -45,17 +51,16 @@ public class IRCClientStateMachine {
         ACTIVE
     }
 
-    public IRCClientStateMachine(IRCClient client, IRCProtocol ircProtocol, IRCMessageQueue recvQ,
-                                 IRCMessageQueue sendQ, SocketConnection socketConnection) {
+    public IRCClientStateMachine(IRCClient client, IRCProtocol ircProtocol) {
         this.client = client;
         this.ircProtocol = ircProtocol;
-        this.recvQ = recvQ;
-        this.sendQ = sendQ;
-        this.socketConnection = socketConnection;
+        this.wakeup = client.getWakeup();
+        this.timer = HashedWheelTimer.getShared();
+        this.reconnectPolicy = client.getReconnectPolicy();
     }
 
     public void doAct() {
-        if (timer == 0) {
+        if (timerExpired()) {
             switch (state) {
                 case DISCONNECTED:
                     handleDisconnected();
@@ -69,54 +74,60 @@ public class IRCClientStateMachine {
                     handleDisconnecting();
                     break;
             }
-        } else {
-            timer--;
         }
 
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // restore interrupt flag
-            LOGGER.warn("sleep interrupted " + e);
+        wakeup.await(nanosUntilNextAction());
+    }
+
+    private long nanosUntilNextAction() {
+        if (!timerExpired()) {
+            return WakeupSignal.FOREVER; // the timeout gives the wakeup
         }
+
+        if (state == State.ACTIVE) {
+            return ircProtocol.getNanosUntilNextAction();
+        }
+
+        return 0;
+    }
+
+    private void setTimer(long millis) {
+        timeout = timer.schedule(wakeup::signal, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean timerExpired() {
+        return (timeout == null) || timeout.isExpired();
     }
 
     private void handleDisconnecting() {
         client.closeConnection();
-        timer = 30; // wait 15 seconds
+
+        long delay = reconnectPolicy.disconnected();
+        if (delay > 0) {
+            LOGGER.info("IRCClient: reconnect in " + delay + " ms");
+            setTimer(delay);
+        }
         state = State.DISCONNECTED;
     }
 
     private void handleActive() {
-        if (recvQ.isEOF()) {
-            timer = 0;
+        IRCMessageQueue recvQ = client.getRecvQ();
+        IRCMessageQueue sendQ = client.getSendQ();
+
+        if (recvQ.isEOF() || client.writeFailed()) {
             state = State.DISCONNECTING;
         } else if (!ircProtocol.processQueues(recvQ, sendQ)) {
-            timer = 0;
             state = State.DISCONNECTING;
         }
-
-        while ((state == State.ACTIVE) && sendQ.messageAvailable()) {
-            IRCMessage m = sendQ.getMessage();
-
-            try {
-                m.writeMessage(socketConnection.getOutputStream());
-            } catch (IOException e) {
-                LOGGER.error("IRCClient/write: ", e);
-                timer = 0;
-                state = State.DISCONNECTING;
-            }
-        }
     }
 
     private void handleDisconnected() {
         LOGGER.info("IRCClient: connect request");
         if (client.init()) {
             LOGGER.info("IRCClient: connected");
+            reconnectPolicy.connected();
             state = State.ACTIVE;
-            timer = 1;
         } else {
-            timer = 1;
             state = State.DISCONNECTING;
         }
     }
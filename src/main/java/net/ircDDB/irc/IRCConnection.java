@@ -0,0 +1,56 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport of one IRC server connection.
+ * Received lines are put into the receive queue, end of stream or a read
+ * error is reported by {@link IRCMessageQueue#signalEOF()}.
+ */
+interface IRCConnection {
+
+    /**
+     * Connects to one of the addresses of the host.
+     *
+     * @return true if no connection could be established
+     */
+    boolean initSocket(String host, int port);
+
+    /**
+     * Starts delivering received messages into the queue.
+     *
+     * @param pool pool for the received messages, null if pooling is disabled
+     * @return false if the receiver could not be started
+     */
+    boolean startReceiver(IRCMessageQueue recvQ, IRCMessagePool pool);
+
+    /**
+     * Sends the remaining bytes of the buffer, usually a batch of messages
+     * encoded by {@link IRCMessageWriter}.
+     */
+    void write(ByteBuffer b) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,116 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop serving the reads and writes of all
+ * {@link NioSocketConnection}s in one thread.
+ */
+final class IRCEventLoop implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(IRCEventLoop.class);
+
+    private static IRCEventLoop instance;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private IRCEventLoop(Selector s) {
+        selector = s;
+    }
+
+    static synchronized IRCEventLoop getInstance() throws IOException {
+        if (instance == null) {
+            IRCEventLoop loop = new IRCEventLoop(Selector.open());
+
+            Thread t = new Thread(loop, "IRCEventLoop");
+            t.setDaemon(true);
+            t.start();
+
+            instance = loop;
+        }
+        return instance;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Runs the task on the loop thread, selector registrations and
+     * interest changes must be done there.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOGGER.error("IRCEventLoop/select: ", e);
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (CancelledKeyException e) {
+                    LOGGER.debug("IRCEventLoop/task: key cancelled");
+                } catch (RuntimeException e) {
+                    LOGGER.error("IRCEventLoop/task: ", e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                // close() may cancel the key on another thread at any time
+                try {
+                    if (key.isValid()) {
+                        ((NioSocketConnection) key.attachment()).handleKey(key);
+                    }
+                } catch (CancelledKeyException e) {
+                    LOGGER.debug("IRCEventLoop/key: key cancelled");
+                } catch (RuntimeException e) {
+                    LOGGER.error("IRCEventLoop/key: ", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Splits the received byte stream into IRC lines.
+ * The bytes of the current line are collected in a reusable buffer and the
+ * tokens are only recorded as offsets. A complete line becomes an
+ * {@link IRCMessage} holding a copy of the raw bytes and the offset table,
+ * prefix and parameters are decoded (UTF-8) when they are read.
+ */
+class IRCLineParser {
+    private static final Logger LOGGER = LogManager.getLogger(IRCLineParser.class);
+
+    static final int MAX_PARAMS = 15;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private static final String[] KNOWN_COMMANDS = {
+            "PRIVMSG", "PING", "PONG", "JOIN", "PART", "QUIT", "KICK", "MODE", "NOTICE",
+            "001", "004", "332", "352", "433", "TOPIC", ""
+    };
+    private static final byte[][] KNOWN_COMMAND_BYTES = new byte[KNOWN_COMMANDS.length][];
+
+    static {
+        for (int k = 0; k < KNOWN_COMMANDS.length; k++) {
+            KNOWN_COMMAND_BYTES[k] = KNOWN_COMMANDS[k].getBytes(US_ASCII);
+        }
+    }
+
+    private final IRCMessageQueue q;
+    private final IRCMessagePool pool;
+
+    private byte[] line = new byte[512];
+    private int length = 0;
+    private boolean overflow = false;
+
+    private int prefixStart;
+    private int prefixEnd;
+    private int commandStart;
+    private int commandEnd;
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramEnd = new int[MAX_PARAMS];
+    private int numParams;
+
+    /**
+     * @param messagePool pool for the received messages, null if pooling is disabled
+     */
+    IRCLineParser(IRCMessageQueue messageQueue, IRCMessagePool messagePool) {
+        q = messageQueue;
+        pool = messagePool;
+    }
+
+    /**
+     * Processes received bytes, every complete line is put into the queue.
+     */
+    void parse(byte[] data, int offset, int count) {
+        int end = offset + count;
+
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+
+            if (b == 10) {
+                q.putMessage(lineComplete());
+            } else if ((b != 13) && (b != 0)) {
+                append(b);
+            }
+        }
+    }
+
+    /**
+     * Processes the remaining bytes of the buffer.
+     */
+    void parse(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+
+            if (b == 10) {
+                q.putMessage(lineComplete());
+            } else if ((b != 13) && (b != 0)) {
+                append(b);
+            }
+        }
+    }
+
+    private void append(byte b) {
+        if (length == line.length) {
+            if (length >= MAX_LINE_LENGTH) {
+                if (!overflow) {
+                    LOGGER.warn("IRCLineParser: line longer than " + MAX_LINE_LENGTH + " bytes, truncated");
+                    overflow = true;
+                }
+                return;
+            }
+
+            byte[] l = new byte[Math.min(length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(line, 0, l, 0, length);
+            line = l;
+        }
+
+        line[length++] = b;
+    }
+
+    private IRCMessage lineComplete() {
+        tokenize();
+
+        IRCMessage m = (pool != null) ? pool.acquire() : new IRCMessage(null);
+        m.setReceived(line, length, prefixStart, prefixEnd, paramStart, paramEnd, numParams, command());
+
+        length = 0;
+        overflow = false;
+
+        return m;
+    }
+
+    /**
+     * Returns the command, the commands handled by IRCProtocol are shared constants.
+     */
+    private String command() {
+        int len = commandEnd - commandStart;
+
+        for (int k = 0; k < KNOWN_COMMANDS.length; k++) {
+            byte[] c = KNOWN_COMMAND_BYTES[k];
+
+            if ((c.length == len) && Arrays.equals(c, 0, len, line, commandStart, commandEnd)) {
+                return KNOWN_COMMANDS[k];
+            }
+        }
+
+        return new String(line, commandStart, len, UTF_8);
+    }
+
+    /**
+     * Records the token offsets of the current line.
+     * Multi-byte UTF-8 sequences never contain ' ' or ':', so the line can be
+     * scanned bytewise before decoding.
+     */
+    private void tokenize() {
+        prefixStart = prefixEnd = 0;
+        commandStart = commandEnd = 0;
+        numParams = 0;
+
+        int i = 0;
+
+        while ((i < length) && (line[i] == ' ')) {
+            i++;
+        }
+
+        if ((i < length) && (line[i] == ':')) {
+            prefixStart = ++i;
+
+            while ((i < length) && (line[i] != ' ')) {
+                i++;
+            }
+
+            prefixEnd = i;
+            i++; // skip space, command is next
+        }
+
+        if (i >= length) {
+            return;
+        }
+
+        commandStart = i;
+
+        while ((i < length) && (line[i] != ' ')) {
+            i++;
+        }
+
+        commandEnd = i;
+
+        while (i < length) {
+            i++; // skip space, next param
+
+            numParams++;
+            paramStart[numParams - 1] = i;
+
+            if (numParams >= MAX_PARAMS) {
+                paramEnd[numParams - 1] = i; // ignore the rest
+                return;
+            }
+
+            if ((i < length) && (line[i] == ':')) {
+                paramStart[numParams - 1] = i + 1; // rest of line is this param
+                paramEnd[numParams - 1] = length;
+                return;
+            }
+
+            while ((i < length) && (line[i] != ' ')) {
+                i++;
+            }
+
+            paramEnd[numParams - 1] = i;
+        }
+    }
+}
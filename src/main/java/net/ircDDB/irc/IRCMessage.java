@@ -22,24 +22,63 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package net.ircDDB.irc;
 
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.util.Arrays;
 
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * A message to be sent or a received message.
+ * Received messages keep the raw line and the token offsets, the prefix
+ * and the parameters are only decoded when read through
+ * {@link #getPrefix()}, {@link #getPrefixNick()} or {@link #getParam(int)}.
+ * The public fields {@link #prefix} and {@link #params} of a received
+ * message are only valid after {@link #materialize()}.
+ * <p>
+ * If message pooling is enabled, a received message is recycled after it
+ * has been dispatched. Whoever keeps it beyond msgChannel/msgQuery has to
+ * call {@link #detach()} first.
+ */
 public class IRCMessage
 {
-	private static final Logger LOGGER = LogManager.getLogger(IRCMessage.class);
+
+	/**
+	 * Send priorities, each one has a lane in the send queue,
+	 * lower values get a larger share of the sent messages.
+	 */
+	public static final int PRIORITY_CONTROL = 0;  // connection and channel management
+	public static final int PRIORITY_SYNC = 1;  // database synchronisation with the server
+	public static final int PRIORITY_BROADCAST = 2;  // channel updates and other messages
+	public static final int PRIORITY_DEBUG = 3;  // debug channel mirroring
 
 	public String prefix;
 	public String command;
 	public String[] params;
 
 	public int numParams;
-	
-	StringBuffer[] prefixComponents;
-	boolean prefixParsed;
+
+	public int priority;
+
+	private String prefixNick;
+	private String prefixName;
+	private String prefixHost;
+
+	/**
+	 * raw line of a received message
+	 */
+	private byte[] raw;
+
+	/**
+	 * prefix start/end followed by start/end of each param
+	 */
+	private int[] offsets;
+	private boolean prefixDecoded;
+
+	private IRCMessagePool pool;
+
+	/**
+	 * set while the message is in the free list of its pool
+	 */
+	boolean pooled;
 
 	public IRCMessage ()
 	{
@@ -47,36 +86,175 @@ public class IRCMessage
 		command = "";
 		params  = new String[15];
 		numParams = 0;
-		
-		prefixParsed = false;
-		
-		prefixComponents = new StringBuffer[3];
+		priority = PRIORITY_BROADCAST;
+
+		prefixDecoded = true;
 	}
 
 	public IRCMessage (String toNick, String msg)
 	{
 		this();
-		
+
 		command = "PRIVMSG";
 		numParams = 2;
 		params[0] = toNick;
 		params[1] = msg;
 	}
-	
+
+	/**
+	 * Received message, filled by {@link #setReceived}.
+	 *
+	 * @param owner pool the message is returned to by {@link #release()}, may be null
+	 */
+	IRCMessage (IRCMessagePool owner)
+	{
+		prefix = "";
+		command = "";
+		numParams = 0;
+
+		pool = owner;
+	}
+
+	/**
+	 * Copies the raw line and the token offsets into this message,
+	 * the buffers of a recycled message are reused if they are large enough.
+	 */
+	void setReceived (byte[] line, int length, int prefixStart, int prefixEnd,
+			int[] paramStart, int[] paramEnd, int nParams, String cmd)
+	{
+		if ((raw == null) || (raw.length < length))
+		{
+			raw = new byte[(pool != null) ? Math.max(length, 512) : length];
+		}
+		System.arraycopy(line, 0, raw, 0, length);
+
+		if ((offsets == null) || (offsets.length < (2 + 2*nParams)))
+		{
+			offsets = new int[(pool != null) ? (2 + 2*IRCLineParser.MAX_PARAMS) : (2 + 2*nParams)];
+		}
+		offsets[0] = prefixStart;
+		offsets[1] = prefixEnd;
+
+		for (int i=0; i < nParams; i++)
+		{
+			offsets[2 + 2*i] = paramStart[i];
+			offsets[3 + 2*i] = paramEnd[i];
+		}
+
+		if (params != null)
+		{
+			Arrays.fill(params, null);
+		}
+
+		prefix = "";
+		command = cmd;
+		numParams = nParams;
+
+		prefixNick = null;
+		prefixName = null;
+		prefixHost = null;
+		prefixDecoded = false;
+	}
+
+	/**
+	 * Returns a received message to its pool.
+	 * Called by the receiving side once the message has been dispatched,
+	 * afterwards the message must not be used anymore.
+	 */
+	void release()
+	{
+		IRCMessagePool p = pool;
+
+		if (p != null)
+		{
+			p.release(this);
+		}
+	}
+
+	/**
+	 * Takes the message out of the recycling, has to be called by anyone who
+	 * keeps a received message after msgChannel/msgQuery returned.
+	 */
+	public void detach()
+	{
+		pool = null;
+	}
+
+	private String decode(int start, int end)
+	{
+		return new String(raw, start, end - start, UTF_8);
+	}
+
+	public String getPrefix()
+	{
+		if (!prefixDecoded)
+		{
+			prefix = decode(offsets[0], offsets[1]);
+			prefixDecoded = true;
+		}
+
+		return prefix;
+	}
+
+	public String getCommand()
+	{
+		return command;
+	}
+
+	public int getNumParams()
+	{
+		return numParams;
+	}
+
+	public String getParam(int i)
+	{
+		if (i >= numParams)
+		{
+			return null;
+		}
+
+		if ((params == null) || (params.length < numParams))
+		{
+			params = new String[(pool != null) ? IRCLineParser.MAX_PARAMS : numParams];
+		}
+
+		if ((params[i] == null) && (raw != null))
+		{
+			params[i] = decode(offsets[2 + 2*i], offsets[3 + 2*i]);
+		}
+
+		return params[i];
+	}
+
+	/**
+	 * Decodes everything, afterwards the public fields are valid.
+	 */
+	public void materialize()
+	{
+		getPrefix();
+
+		for (int i=0; i < numParams; i++)
+		{
+			getParam(i);
+		}
+	}
+
 	void parsePrefix()
 	{
 		int i;
-		
+		StringBuilder[] prefixComponents = new StringBuilder[3];
+
 		for (i=0; i < 3; i++)
 		{
-			prefixComponents[i] = new StringBuffer(20);
+			prefixComponents[i] = new StringBuilder(20);
 		}
 
 		int state = 0;
-		
-		for (i=0; i < prefix.length(); i++)
+		String p = getPrefix();
+
+		for (i=0; i < p.length(); i++)
 		{
-			char c = prefix.charAt(i);
+			char c = p.charAt(i);
 			
 			switch (c)
 			{
@@ -93,76 +271,54 @@ public class IRCMessage
 				break;
 			}
 		}
-	
-		prefixParsed = true;
+
+		prefixNick = prefixComponents[0].toString();
+		prefixName = prefixComponents[1].toString();
+		prefixHost = prefixComponents[2].toString();
 	}
 
 	public String getPrefixNick()
 	{
-		if (!prefixParsed)
+		if (prefixNick == null)
 		{
-			parsePrefix();
+			if (raw != null)
+			{
+				// the nick ends at the first '!' or '@', no need to split the whole prefix
+				int end = offsets[0];
+
+				while ((end < offsets[1]) && (raw[end] != '!') && (raw[end] != '@'))
+				{
+					end++;
+				}
+
+				prefixNick = decode(offsets[0], end);
+			}
+			else
+			{
+				parsePrefix();
+			}
 		}
 		
-		return prefixComponents[0].toString();
+		return prefixNick;
 	}
 
 	public String getPrefixName()
 	{
-		if (!prefixParsed)
+		if (prefixName == null)
 		{
 			parsePrefix();
 		}
 		
-		return prefixComponents[1].toString();
+		return prefixName;
 	}
 
 	public String getPrefixHost()
 	{
-		if (!prefixParsed)
+		if (prefixHost == null)
 		{
 			parsePrefix();
 		}
 		
-		return prefixComponents[2].toString();
-	}
-
-	void writeMessage ( OutputStream os ) throws java.io.IOException
-	{
-
-		if (LOGGER.isDebugEnabled())
-		{
-			LOGGER.debug("T [" + prefix + "]" );
-			LOGGER.debug(" [" + command +"]" );
-			for (int i=0; i < numParams; i++)
-			{
-				LOGGER.debug(" [" + params[i] + "]" );
-			}
-		}
-
-        var p = new PrintWriter(os);
-
-		if (!prefix.isEmpty())
-		{
-			p.format(":%s ", prefix);
-		}
-
-		p.print(command);
-
-		for (int i=0; i < numParams; i++)
-		{
-			if (i == (numParams - 1))
-			{
-				p.format(" :%s", params[i]);
-			}
-			else
-			{
-				p.format(" %s", params[i]);
-			}
-		}
-
-		p.print("\r\n");
-		p.flush();
-
+		return prefixHost;
 	}
 }
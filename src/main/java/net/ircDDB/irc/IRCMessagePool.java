@@ -0,0 +1,64 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+/**
+ * Free list of received messages.
+ * <p>
+ * Ownership: a message taken by the receiver belongs to the receive queue
+ * and then to {@link IRCProtocol#processQueues}, which releases it after
+ * dispatching. Handlers called during dispatch (msgChannel/msgQuery) may
+ * only use the message during the call, unless they {@link IRCMessage#detach()}
+ * it. A detached message is never recycled.
+ */
+final class IRCMessagePool {
+
+    private final IRCMessage[] free;
+    private int size;
+
+    IRCMessagePool(int capacity) {
+        free = new IRCMessage[capacity];
+        size = 0;
+    }
+
+    synchronized IRCMessage acquire() {
+        if (size == 0) {
+            return new IRCMessage(this);
+        }
+
+        IRCMessage m = free[--size];
+        free[size] = null;
+        m.pooled = false;
+        return m;
+    }
+
+    synchronized void release(IRCMessage m) {
+        if (m.pooled) {
+            return; // released twice
+        }
+
+        if (size < free.length) {
+            m.pooled = true;
+            free[size++] = m;
+        }
+    }
+}
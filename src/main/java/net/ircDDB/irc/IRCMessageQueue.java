@@ -23,36 +23,178 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package net.ircDDB.irc;
 
 
-
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Every slot carries a sequence number: a producer claims a position by a
+ * CAS on the tail, stores the message and then publishes it by advancing
+ * the slot sequence. The consumer only reads slots whose sequence says
+ * they are published, so no locks and no allocation per message are needed.
+ * <p>
+ * A queue with priority lanes keeps one such ring per
+ * {@link IRCMessage#priority}. Order is kept within a lane, the consumer
+ * takes up to weight messages from each lane per round, so a lane with a
+ * high weight is served first but low lanes are not starved.
+ * <p>
+ * EOF: the flag is volatile, everything a thread put before calling
+ * {@link #signalEOF()} is visible to a consumer which sees {@link #isEOF()}.
+ * After EOF producers no longer wait for space in a full queue, the
+ * message is dropped instead, so nobody hangs on an abandoned queue.
+ * <p>
+ * {@link #putMessage} blocks the caller while the queue (lane) is full,
+ * {@link #offerMessage} never blocks.
+ */
 public class IRCMessageQueue
 {
+	private static final Logger LOGGER = LogManager.getLogger(IRCMessageQueue.class);
+
+	public static final int DEFAULT_CAPACITY = 8192;
 
-	static class Item
+	private static final class Lane
 	{
+		final IRCMessage[] slots;
+		final AtomicLongArray sequence;
+		final int mask;
+
+		/**
+		 * next position claimed by a producer
+		 */
+		final AtomicLong tail = new AtomicLong();
+
+		/**
+		 * next position read by the consumer, only written by the consumer
+		 */
+		volatile long head;
+
+		Lane(int capacity)
+		{
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+			slots = new IRCMessage[size];
+			sequence = new AtomicLongArray(size);
+			mask = size - 1;
+
+			for (int i = 0; i < size; i++)
+			{
+				sequence.set(i, i);
+			}
+
+			head = 0;
+		}
+
+		int size()
+		{
+			return (int) Math.max(0, tail.get() - head);
+		}
+
+		boolean messageAvailable()
+		{
+			long h = head;
+
+			return sequence.get((int) h & mask) == (h + 1);
+		}
+
+		IRCMessage poll()
+		{
+			long h = head;
+			int i = (int) h & mask;
+
+			if (sequence.get(i) != (h + 1))
+			{
+				return null;
+			}
 
-		private Item prev;
-		private Item next;
+			IRCMessage m = slots[i];
+			slots[i] = null;
 
-		private IRCMessage msg;
+			sequence.set(i, h + slots.length);  // slot is free for the next round
+			head = h + 1;
 
-		Item(IRCMessage m)
-		{	
-			msg = m;
+			return m;
 		}
 
+		boolean offer(IRCMessage m)
+		{
+			while (true)
+			{
+				long t = tail.get();
+				int i = (int) t & mask;
+				long dif = sequence.get(i) - t;
+
+				if (dif == 0)
+				{
+					if (tail.compareAndSet(t, t + 1))
+					{
+						slots[i] = m;
+						sequence.set(i, t + 1);  // publish
+						return true;
+					}
+				}
+				else if (dif < 0)
+				{
+					return false;  // full
+				}
+				// else: position was claimed by another producer, retry
+			}
+		}
 	}
 
-	private boolean eof;
+	private final Lane[] lanes;
+	private final int[] weights;
+
+	/**
+	 * weighted round robin, only used by the consumer
+	 */
+	private int turn;
+	private int credit;
 
-	private Item first;
-	private Item last;
+	private volatile boolean eof;
+
+	/**
+	 * a full queue was logged, reset when a put does not wait
+	 */
+	private volatile boolean fullWarned;
+
+	private volatile WakeupSignal consumerWakeup;
 
 
 	public IRCMessageQueue()
 	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IRCMessageQueue(int capacity)
+	{
+		this(capacity, new int[] { 1 });
+	}
+
+	/**
+	 * Queue with one lane per priority.
+	 *
+	 * @param capacity capacity of each lane
+	 * @param laneWeights messages taken per round, indexed by priority
+	 */
+	public IRCMessageQueue(int capacity, int[] laneWeights)
+	{
+		lanes = new Lane[laneWeights.length];
+		weights = laneWeights.clone();
+
+		for (int i = 0; i < lanes.length; i++)
+		{
+			lanes[i] = new Lane(capacity);
+		}
+
+		turn = 0;
+		credit = weights[0];
 		eof = false;
-		first = null;
-		last = null;
 	}
 
 
@@ -64,55 +206,183 @@ public class IRCMessageQueue
 	public void signalEOF()
 	{
 		eof = true;
+		wakeConsumer();
 	}
 
-	public synchronized boolean messageAvailable()
+	/**
+	 * The signal is given whenever a message was put or EOF was signalled.
+	 */
+	public void setConsumerWakeup(WakeupSignal w)
 	{
-		return (first != null);
+		consumerWakeup = w;
 	}
 
+	private void wakeConsumer()
+	{
+		WakeupSignal w = consumerWakeup;
 
-	public synchronized IRCMessage getMessage()
+		if (w != null)
+		{
+			w.signal();
+		}
+	}
+
+	public int capacity()
 	{
+		return lanes.length * lanes[0].slots.length;
+	}
 
-        if (first == null)
+	/**
+	 * Number of queued messages, exact only when called by the consumer
+	 * while no producer is active.
+	 */
+	public int size()
+	{
+		int n = 0;
+
+		for (Lane l : lanes)
 		{
-			return null;
+			n += l.size();
 		}
+		return n;
+	}
 
-        Item k = first;
+	public boolean messageAvailable()
+	{
+		for (Lane l : lanes)
+		{
+			if (l.messageAvailable())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
 
-		first = k.next;
 
-		if (k.next == null)
+	/**
+	 * Only called by the consumer thread.
+	 */
+	public IRCMessage getMessage()
+	{
+		if (lanes.length == 1)
 		{
-			last = null;
+			return lanes[0].poll();
 		}
-		else
+
+		// every lane is visited once, the current one twice if its
+		// credit is used up
+		for (int k = 0; k <= lanes.length; k++)
 		{
-			k.next.prev = null;
+			if (credit > 0)
+			{
+				IRCMessage m = lanes[turn].poll();
+
+				if (m != null)
+				{
+					credit--;
+					return m;
+				}
+			}
+
+			turn = (turn + 1) % lanes.length;
+			credit = weights[turn];
 		}
-		
-		return k.msg;
+
+		return null;
 	}
 
 
-	public synchronized void putMessage( IRCMessage m )
+	/**
+	 * Moves up to maxMessages messages into the collection.
+	 * Only called by the consumer thread.
+	 *
+	 * @return number of messages moved
+	 */
+	public int drainTo(Collection<? super IRCMessage> c, int maxMessages)
 	{
-		Item k = new Item(m);
+		int n = 0;
+
+		while (n < maxMessages)
+		{
+			IRCMessage m = getMessage();
 
-		k.prev = last;
-		k.next = null;
+			if (m == null)
+			{
+				break;
+			}
 
-		if (last == null)
+			c.add(m);
+			n++;
+		}
+
+		return n;
+	}
+
+	public int drainTo(Collection<? super IRCMessage> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Puts the message without waiting, into the lane of its priority
+	 * if the queue has lanes.
+	 *
+	 * @return false if the queue (lane) is full
+	 */
+	public boolean offerMessage( IRCMessage m )
+	{
+		Lane l = lanes[Math.min(Math.max(m.priority, 0), lanes.length - 1)];
+
+		if (!l.offer(m))
 		{
-			first = k;
+			return false;
 		}
-		else
+
+		wakeConsumer();
+		return true;
+	}
+
+
+	/**
+	 * Puts the message, waits while the queue is full.
+	 * The consumer thread must not put into its own full queue.
+	 */
+	public void putMessage( IRCMessage m )
+	{
+		if (offerMessage(m))
 		{
-			last.next = k;
+			fullWarned = false;  // drained, the next full queue is logged again
+			return;
 		}
 
-		last = k;
+		int spins = 0;
+
+		do
+		{
+			if (eof)
+			{
+				LOGGER.warn("IRCMessageQueue: full after EOF, message dropped");
+				return;
+			}
+
+			if ((spins == 0) && !fullWarned)
+			{
+				fullWarned = true;
+				LOGGER.warn("IRCMessageQueue: full, waiting for consumer");
+			}
+
+			if (spins < 100)
+			{
+				Thread.onSpinWait();
+			}
+			else
+			{
+				LockSupport.parkNanos(100000L);
+			}
+			spins++;
+		}
+		while (!offerMessage(m));
 	}
 }
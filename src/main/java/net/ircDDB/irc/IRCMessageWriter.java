@@ -0,0 +1,151 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes outgoing messages (UTF-8) into one reusable buffer, so a batch
+ * of messages is written to the socket at once.
+ * Not thread safe, owned by the thread draining the send queue.
+ */
+final class IRCMessageWriter {
+    private static final Logger LOGGER = LogManager.getLogger(IRCMessageWriter.class);
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer buf = ByteBuffer.allocate(INITIAL_SIZE);
+
+    /**
+     * Number of encoded bytes not yet written.
+     */
+    int size() {
+        return buf.position();
+    }
+
+    void clear() {
+        buf.clear();
+    }
+
+    void append(IRCMessage m) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("T [" + m.prefix + "]");
+            LOGGER.debug(" [" + m.command + "]");
+            for (int i = 0; i < m.numParams; i++) {
+                LOGGER.debug(" [" + m.params[i] + "]");
+            }
+        }
+
+        if ((m.prefix != null) && !m.prefix.isEmpty()) {
+            put(':');
+            put(m.prefix);
+            put(' ');
+        }
+
+        put(m.command);
+
+        for (int i = 0; i < m.numParams; i++) {
+            put(' ');
+            if (i == (m.numParams - 1)) {
+                put(':');
+            }
+            put(m.params[i]);
+        }
+
+        put('\r');
+        put('\n');
+    }
+
+    /**
+     * @return the encoded bytes, valid until the next call of
+     * {@link #clear()} or {@link #append(IRCMessage)}
+     */
+    ByteBuffer flip() {
+        ByteBuffer b = buf.duplicate();
+        b.flip();
+        return b;
+    }
+
+    private void put(char c) {
+        ensureRemaining(1);
+        buf.put((byte) c);
+    }
+
+    /**
+     * null is written as "null", like the formatter did before
+     */
+    private void put(String s) {
+        if (s == null) {
+            s = "null";
+        }
+
+        int n = s.length();
+        ensureRemaining(n);
+
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buf.put((byte) c);
+            i++;
+        }
+
+        if (i < n) {
+            encode(s, i);
+        }
+    }
+
+    private void encode(String s, int start) {
+        CharBuffer in = CharBuffer.wrap(s, start, s.length());
+
+        encoder.reset();
+        while (encoder.encode(in, buf, true).isOverflow()) {
+            ensureRemaining(buf.capacity());
+        }
+        while (encoder.flush(buf).isOverflow()) {
+            ensureRemaining(buf.capacity());
+        }
+    }
+
+    private void ensureRemaining(int n) {
+        if (buf.remaining() < n) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+            buf.flip();
+            b.put(buf);
+            buf = b;
+        }
+    }
+}
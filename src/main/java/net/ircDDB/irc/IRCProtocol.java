@@ -27,6 +27,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is a custom IRC implementation.
@@ -41,17 +42,28 @@ public class IRCProtocol {
     private final String channel;
     private final String debugChannel;
     private String currentNick;
+    private int nickIndex;
+    /**
+     * nick collisions during the current registration
+     */
+    private int collisions;
 
     private int state;
-    private int timer;
-    private final int pingTimer;
+    /**
+     * timeout of the current state, it wakes up the IRC thread when it expires
+     */
+    private HashedWheelTimer.Timeout timeout;
+    private final HashedWheelTimer timer;
+    private final WakeupSignal wakeup;
+    private final long pingTimeout;
 
     private final Random r;
 
     private final IRCApplication app;
     private final String version;
 
-    IRCProtocol(IRCApplication a, String ch, String dbg_chan, String n, String[] u, String pass, String v) {
+    IRCProtocol(IRCApplication a, String ch, String dbg_chan, String n, String[] u, String pass, String v,
+                WakeupSignal w) {
 
         app = a;
 
@@ -62,8 +74,10 @@ public class IRCProtocol {
         debugChannel = dbg_chan;
 
         state = 0;
-        timer = 0;
-        pingTimer = 60; // 30 seconds
+        timer = HashedWheelTimer.getShared();
+        wakeup = w;
+        timeout = null;
+        pingTimeout = 30000; // 30 seconds
 
         r = new Random();
         chooseNewNick();
@@ -73,8 +87,18 @@ public class IRCProtocol {
 
 
     void chooseNewNick() {
-        int k = r.nextInt(nicks.length);
+        setNick(r.nextInt(nicks.length));
+    }
+
+    /**
+     * After a nick collision the next nick of the list is tried.
+     */
+    private void chooseNextNick() {
+        setNick((nickIndex + 1) % nicks.length);
+    }
 
+    private void setNick(int k) {
+        nickIndex = k;
         currentNick = nicks[k];
 
         if (app != null) {
@@ -96,39 +120,65 @@ public class IRCProtocol {
     }
 
 
-    boolean processQueues(IRCMessageQueue recvQ, IRCMessageQueue sendQ) {
+    private void startTimer(long millis) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timeout = timer.schedule(wakeup::signal, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean timerExpired() {
+        return (timeout == null) || timeout.isExpired();
+    }
 
-        if (timer > 0) {
-            timer--;
+    /**
+     * Time until processQueues has to be called again even if no message arrives,
+     * expiring timeouts wake up the IRC thread themselves.
+     *
+     * @return 0 if the current state has to be processed right away
+     */
+    long getNanosUntilNextAction() {
+        switch (state) {
+            case 1, 5, 7, 10:
+                return 0; // states which send immediately
+
+            default:
+                return WakeupSignal.FOREVER;
         }
+    }
+
+    boolean processQueues(IRCMessageQueue recvQ, IRCMessageQueue sendQ) {
 
         while (recvQ.messageAvailable()) {
             IRCMessage m = recvQ.getMessage();
 
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("R [" + m.prefix + "]");
+                LOGGER.debug("R [" + m.getPrefix() + "]");
                 LOGGER.debug(" [" + m.command + "]");
 
                 for (int i = 0; i < m.numParams; i++) {
-                    LOGGER.debug(" [" + m.params[i] + "]");
+                    LOGGER.debug(" [" + m.getParam(i) + "]");
                 }
             }
 
             switch (m.command) {
-                case "004" -> {
+                case "001", "004" -> {
                     if (state == 4) {
-                        state = 5;  // next: JOIN
+                        state = 5;  // registered, next: JOIN
                     }
                 }
                 case "PING" -> {
                     IRCMessage m2 = new IRCMessage();
+                    m2.priority = IRCMessage.PRIORITY_CONTROL;
                     m2.command = "PONG";
-                    m2.numParams = 1;
-                    m2.params[0] = m.params[0];
+                    if (m.numParams >= 1) {
+                        m2.numParams = 1;
+                        m2.params[0] = m.getParam(0);
+                    }
                     sendQ.putMessage(m2);
                 }
                 case "JOIN" -> {
-                    if ((m.numParams >= 1) && m.params[0].equals(channel)) {
+                    if ((m.numParams >= 1) && m.getParam(0).equals(channel)) {
                         if (m.getPrefixNick().equals(currentNick) && (state == 6)) {
                             if (debugChannel != null) {
                                 state = 7;  // next: join debug_channel
@@ -140,7 +190,7 @@ public class IRCProtocol {
                         }
                     }
 
-                    if ((m.numParams >= 1) && m.params[0].equals(debugChannel)) {
+                    if ((m.numParams >= 1) && m.getParam(0).equals(debugChannel)) {
                         if (m.getPrefixNick().equals(currentNick) && (state == 8)) {
                             state = 10; // next: WHO *
                         }
@@ -148,24 +198,24 @@ public class IRCProtocol {
                 }
                 case "PONG" -> {
                     if (state == 12) {
-                        timer = pingTimer;
+                        startTimer(pingTimeout);
                         state = 11;
                     }
                 }
                 case "PART" -> {
-                    if ((m.numParams >= 1) && m.params[0].equals(channel)) {
+                    if ((m.numParams >= 1) && m.getParam(0).equals(channel)) {
                         if (app != null) {
                             app.userLeave(m.getPrefixNick());
                         }
                     }
                 }
                 case "KICK" -> {
-                    if ((m.numParams >= 2) && m.params[0].equals(channel)) {
-                        if (m.params[1].equals(currentNick)) {
+                    if ((m.numParams >= 2) && m.getParam(0).equals(channel)) {
+                        if (m.getParam(1).equals(currentNick)) {
                             // i was kicked!!
                             return false;
                         } else if (app != null) {
-                            app.userLeave(m.params[1]);
+                            app.userLeave(m.getParam(1));
                         }
                     }
                 }
@@ -175,17 +225,17 @@ public class IRCProtocol {
                     }
                 }
                 case "MODE" -> {
-                    if ((m.numParams >= 3) && m.params[0].equals(channel)) {
+                    if ((m.numParams >= 3) && m.getParam(0).equals(channel)) {
                         if (app != null) {
                             int i;
-                            String mode = m.params[1];
+                            String mode = m.getParam(1);
 
                             for (i = 1; (i < mode.length()) && (m.numParams >= (i + 2)); i++) {
                                 if (mode.charAt(i) == 'o') {
                                     if (mode.charAt(0) == '+') {
-                                        app.userChanOp(m.params[i + 1], true);
+                                        app.userChanOp(m.getParam(i + 1), true);
                                     } else if (mode.charAt(0) == '-') {
-                                        app.userChanOp(m.params[i + 1], false);
+                                        app.userChanOp(m.getParam(i + 1), false);
                                     }
                                 }
                             } // for
@@ -194,9 +244,9 @@ public class IRCProtocol {
                 }
                 case "PRIVMSG" -> {
                     if ((m.numParams == 2) && (app != null)) {
-                        if (m.params[0].equals(channel)) {
+                        if (m.getParam(0).equals(channel)) {
                             app.msgChannel(m);
-                        } else if (m.params[0].equals(currentNick)) {
+                        } else if (m.getParam(0).equals(currentNick)) {
                             app.msgQuery(m);
                         }
                     }
@@ -204,31 +254,41 @@ public class IRCProtocol {
                 case "352" -> {
 // WHO list
 
-                    if ((m.numParams >= 7) && m.params[0].equals(currentNick)
-                            && m.params[1].equals(channel)) {
+                    if ((m.numParams >= 7) && m.getParam(0).equals(currentNick)
+                            && m.getParam(1).equals(channel)) {
                         if (app != null) {
-                            app.userJoin(m.params[5], m.params[2], m.params[3]);
-                            app.userChanOp(m.params[5], m.params[6].equals("H@"));
+                            app.userJoin(m.getParam(5), m.getParam(2), m.getParam(3));
+                            app.userChanOp(m.getParam(5), m.getParam(6).equals("H@"));
                         }
                     }
                 }
                 case "433" -> {
 // nick collision
 
-                    if (state == 2) {
-                        state = 3;  // nick collision, choose new nick
-                        timer = 10; // wait 5 seconds..
+                    if (state == 4) {
+                        collisions++;
+
+                        if ((collisions % nicks.length) == 0) {
+                            state = 3;  // all nicks tried, wait 5 seconds before the next one
+                            startTimer(5000);
+                        } else {
+                            chooseNextNick();
+                            sendNick(sendQ);
+                            startTimer(15000);
+                        }
                     }
                 }
                 case "332", "TOPIC" -> {
 // topic
 
                     if ((m.numParams == 2) && (app != null) &&
-                            m.params[0].equals(channel)) {
-                        app.setTopic(m.params[1]);
+                            m.getParam(0).equals(channel)) {
+                        app.setTopic(m.getParam(1));
                     }
                 }
             }
+
+            m.release();
         }
 
         IRCMessage m;
@@ -236,53 +296,43 @@ public class IRCProtocol {
         switch (state) {
             case 1:
                 m = new IRCMessage();
+                m.priority = IRCMessage.PRIORITY_CONTROL;
                 m.command = "PASS";
                 m.numParams = 1;
                 m.params[0] = password;
                 sendQ.putMessage(m);
 
+                sendNick(sendQ);
+
+                // USER is sent right away, a nick collision (433) is answered
+                // by the next NICK before the server completes the registration
                 m = new IRCMessage();
-                m.command = "NICK";
-                m.numParams = 1;
-                m.params[0] = currentNick;
+                m.priority = IRCMessage.PRIORITY_CONTROL;
+                m.command = "USER";
+                m.numParams = 4;
+                m.params[0] = name;
+                m.params[1] = "0";
+                m.params[2] = "*";
+                m.params[3] = version;
                 sendQ.putMessage(m);
 
-                timer = 10;  // wait for possible nick collision message
-                state = 2;
-                break;
-
-            case 2:
-                if (timer == 0) {
-                    m = new IRCMessage();
-                    m.command = "USER";
-                    m.numParams = 4;
-                    m.params[0] = name;
-                    m.params[1] = "0";
-                    m.params[2] = "*";
-                    m.params[3] = version;
-                    sendQ.putMessage(m);
-
-                    timer = 30;
-                    state = 4; // wait for login message
-                }
+                collisions = 0;
+                startTimer(15000);
+                state = 4; // wait for login message
                 break;
 
             case 3:
-                if (timer == 0) {
-                    chooseNewNick();
-                    m = new IRCMessage();
-                    m.command = "NICK";
-                    m.numParams = 1;
-                    m.params[0] = currentNick;
-                    sendQ.putMessage(m);
+                if (timerExpired()) {
+                    chooseNextNick();
+                    sendNick(sendQ);
 
-                    timer = 10;  // wait for possible nick collision message
-                    state = 2;
+                    startTimer(15000);
+                    state = 4;
                 }
                 break;
 
             case 4:
-                if (timer == 0) {
+                if (timerExpired()) {
                     // no login message received -> disconnect
                     return false;
                 }
@@ -290,17 +340,18 @@ public class IRCProtocol {
 
             case 5:
                 m = new IRCMessage();
+                m.priority = IRCMessage.PRIORITY_CONTROL;
                 m.command = "JOIN";
                 m.numParams = 1;
                 m.params[0] = channel;
                 sendQ.putMessage(m);
 
-                timer = 30;
+                startTimer(15000);
                 state = 6; // wait for join message
                 break;
 
             case 6:
-                if (timer == 0) {
+                if (timerExpired()) {
                     // no join message received -> disconnect
                     return false;
                 }
@@ -312,17 +363,18 @@ public class IRCProtocol {
                 }
 
                 m = new IRCMessage();
+                m.priority = IRCMessage.PRIORITY_CONTROL;
                 m.command = "JOIN";
                 m.numParams = 1;
                 m.params[0] = debugChannel;
                 sendQ.putMessage(m);
 
-                timer = 30;
+                startTimer(15000);
                 state = 8; // wait for join message
                 break;
 
             case 8:
-                if (timer == 0) {
+                if (timerExpired()) {
                     // no join message received -> disconnect
                     return false;
                 }
@@ -330,13 +382,14 @@ public class IRCProtocol {
 
             case 10:
                 m = new IRCMessage();
+                m.priority = IRCMessage.PRIORITY_CONTROL;
                 m.command = "WHO";
                 m.numParams = 2;
                 m.params[0] = channel;
                 m.params[1] = "*";
                 sendQ.putMessage(m);
 
-                timer = pingTimer;
+                startTimer(pingTimeout);
                 state = 11; // wait for timer and then send ping
 
                 if (app != null) {
@@ -345,20 +398,21 @@ public class IRCProtocol {
                 break;
 
             case 11:
-                if (timer == 0) {
+                if (timerExpired()) {
                     m = new IRCMessage();
+                    m.priority = IRCMessage.PRIORITY_CONTROL;
                     m.command = "PING";
                     m.numParams = 1;
                     m.params[0] = currentNick;
                     sendQ.putMessage(m);
 
-                    timer = pingTimer;
+                    startTimer(pingTimeout);
                     state = 12; // wait for pong
                 }
                 break;
 
             case 12:
-                if (timer == 0) {
+                if (timerExpired()) {
                     // no pong message received -> disconnect
                     return false;
                 }
@@ -368,4 +422,13 @@ public class IRCProtocol {
         return true;
     }
 
+    private void sendNick(IRCMessageQueue sendQ) {
+        IRCMessage m = new IRCMessage();
+        m.priority = IRCMessage.PRIORITY_CONTROL;
+        m.command = "NICK";
+        m.numParams = 1;
+        m.params[0] = currentNick;
+        sendQ.putMessage(m);
+    }
+
 }
@@ -40,21 +40,19 @@ public class IRCReceiver implements Runnable {
 
     private final InputStream is;
     private final IRCMessageQueue q;
-    private int state = 0;
+    private final IRCLineParser parser;
 
-    IRCReceiver(InputStream inputStream, IRCMessageQueue messageQueue) {
+    IRCReceiver(InputStream inputStream, IRCMessageQueue messageQueue, IRCMessagePool pool) {
         is = inputStream;
         q = messageQueue;
+        parser = new IRCLineParser(messageQueue, pool);
     }
 
 
     public void run() {
-        IRCMessage m = new IRCMessage();
-
         byte[] bb = new byte[1000];
 
         while (true) {
-            byte b;
             int res;
 
             try {
@@ -76,88 +74,7 @@ public class IRCReceiver implements Runnable {
                 return;
             }
 
-            for (int i = 0; i < res; i++) {
-                b = bb[i];
-                if (b > 0) {
-                    if (b == 10) {
-                        q.putMessage(m);
-                        m = new IRCMessage();
-                        state = 0;
-                    } else if (b != 13) {
-                        doAction(b, m);
-                    }
-                }
-            }
-        }
-    }
-
-    private void doAction(byte b, IRCMessage m) {
-        switch (state) {
-            case 0:
-                performState0(b, m);
-                break;
-
-            case 1:
-                performState1(b, m);
-                break;
-
-            case 2:
-                performState2(b, m);
-                break;
-
-            case 3:
-                performState3(b, m);
-                break;
-
-            case 4:
-                performState4((char) b, m);
-                break;
-        }
-    }
-
-    private static void performState4(char b, IRCMessage m) {
-        m.params[m.numParams - 1] = m.params[m.numParams - 1] + b;
-    }
-
-    private void performState3(byte b, IRCMessage m) {
-        if (b == 32) {
-            m.numParams++;
-            if (m.numParams >= m.params.length) {
-                state = 5; // ignore the rest
-            }
-
-            m.params[m.numParams - 1] = "";
-        } else if ((b == ':') && (m.params[m.numParams - 1].isEmpty())) {
-            state = 4; // rest of line is this param
-        } else {
-            performState4((char) b, m);
-        }
-    }
-
-    private void performState2(byte b, IRCMessage m) {
-        if (b == 32) {
-            state = 3; // params
-            m.numParams = 1;
-            m.params[m.numParams - 1] = "";
-        } else {
-            m.command = m.command + (char) b;
-        }
-    }
-
-    private void performState1(byte b, IRCMessage m) {
-        if (b == 32) {
-            state = 2; // command is next
-        } else {
-            m.prefix = m.prefix + (char) b;
-        }
-    }
-
-    private void performState0(byte b, IRCMessage m) {
-        if (b == ':') {
-            state = 1; // prefix
-        } else if (b != 32) {
-            m.command = Character.toString((char) b);
-            state = 2; // command
+            parser.parse(bb, 0, res);
         }
     }
 }
@@ -0,0 +1,109 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Writes the send queue of one connection, so a slow peer does not stall
+ * the processing of received messages.
+ * With flood control, messages are only taken from the queue as fast as
+ * the token bucket allows, the rest stays queued as backlog.
+ * Runs until the queue signals EOF or a write fails, a failure is reported
+ * to the state machine by its wakeup.
+ */
+final class IRCSender implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(IRCSender.class);
+
+    /**
+     * bytes per socket write, well below the send buffer of the NIO transport
+     */
+    private static final int MAX_BATCH_SIZE = 16384;
+
+    private final IRCConnection connection;
+    private final IRCMessageQueue sendQ;
+    private final WakeupSignal stateMachine;
+    private final TokenBucket floodControl;
+    private final WakeupSignal wakeup = new WakeupSignal();
+    private final IRCMessageWriter writer = new IRCMessageWriter();
+    private volatile boolean failed;
+
+    /**
+     * @param f flood control, null to send without limit
+     */
+    IRCSender(IRCConnection c, IRCMessageQueue q, WakeupSignal w, TokenBucket f) {
+        connection = c;
+        sendQ = q;
+        stateMachine = w;
+        floodControl = f;
+        q.setConsumerWakeup(wakeup);
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    public void run() {
+        while (!sendQ.isEOF()) {
+            if (!sendQ.messageAvailable()) {
+                wakeup.await(WakeupSignal.FOREVER);
+                continue;
+            }
+
+            writer.clear();
+            try {
+                while ((writer.size() < MAX_BATCH_SIZE) && sendQ.messageAvailable()) {
+                    if ((floodControl != null) && !floodControl.tryAcquire()) {
+                        break;
+                    }
+                    writer.append(sendQ.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // the thread ends, the client must not keep a silent connection
+                LOGGER.error("IRCClient/sender: ", e);
+                failed = true;
+                stateMachine.signal();
+                return;
+            }
+
+            if (writer.size() == 0) {
+                // throttled, new messages wake up early but are not sent
+                wakeup.await(floodControl.nanosUntilAvailable());
+                continue;
+            }
+
+            try {
+                connection.write(writer.flip());
+            } catch (IOException e) {
+                if (!sendQ.isEOF()) {
+                    LOGGER.error("IRCClient/write: ", e);
+                    failed = true;
+                    stateMachine.signal();
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking transport, reads and writes are done by the shared
+ * {@link IRCEventLoop} instead of a receiver thread per socket.
+ */
+class NioSocketConnection implements IRCConnection {
+    private static final Logger LOGGER = LogManager.getLogger(NioSocketConnection.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 65536;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     * Pending output in write mode, guarded by itself. A writer waits on it
+     * while it is full, flush() wakes it up.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private boolean writeRequested;
+    private boolean closed;
+
+    private final Runnable enableWriteTask = this::enableWrite;
+
+    private SocketChannel channel;
+    private IRCEventLoop loop;
+    private IRCMessageQueue recvQ;
+    private IRCLineParser parser;
+
+    /**
+     * Only accessed by the event loop thread.
+     */
+    private SelectionKey key;
+
+
+    public boolean initSocket(String host, int port) {
+        channel = HappyEyeballsConnector.connect(host, port);
+
+        if (channel == null) {
+            LOGGER.error("IRCClient: no connection");
+            return true;
+        }
+
+        readBuffer.clear();
+        synchronized (writeBuffer) {
+            writeBuffer.clear();
+            writeRequested = false;
+            closed = false;
+        }
+        return false;
+    }
+
+    public boolean startReceiver(IRCMessageQueue q, IRCMessagePool pool) {
+        try {
+            loop = IRCEventLoop.getInstance();
+        } catch (IOException e) {
+            LOGGER.error("IRCClient/event loop: ", e);
+            return false;
+        }
+
+        recvQ = q;
+        parser = new IRCLineParser(q, pool);
+
+        final SocketChannel c = channel;
+        loop.execute(() -> register(c, q));
+        return true;
+    }
+
+    private void register(SocketChannel c, IRCMessageQueue q) {
+        try {
+            key = c.register(loop.getSelector(), SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            LOGGER.warn("IRCClient/register: channel closed");
+            q.signalEOF();
+        }
+    }
+
+    /**
+     * Blocks while the send buffer is full, like a blocking socket does
+     * with a slow peer.
+     */
+    public void write(ByteBuffer b) throws IOException {
+        synchronized (writeBuffer) {
+            while (b.hasRemaining()) {
+                if (closed) {
+                    throw new IOException("connection closed");
+                }
+
+                if (writeBuffer.hasRemaining()) {
+                    int limit = b.limit();
+
+                    b.limit(b.position() + Math.min(b.remaining(), writeBuffer.remaining()));
+                    writeBuffer.put(b);
+                    b.limit(limit);
+
+                    if (!writeRequested) {
+                        writeRequested = true;
+                        loop.execute(enableWriteTask);
+                    }
+                }
+
+                if (b.hasRemaining()) {
+                    try {
+                        writeBuffer.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("write interrupted", e);
+                    }
+                }
+            }
+        }
+    }
+
+    public void close() {
+        setClosed();
+        closeChannel(channel);
+    }
+
+    private void setClosed() {
+        synchronized (writeBuffer) {
+            closed = true;
+            writeBuffer.notifyAll();
+        }
+    }
+
+    private static void closeChannel(SocketChannel c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOGGER.warn("IRCClient/channel.close: ", e);
+            }
+        }
+    }
+
+    /**
+     * Called by the event loop for ready keys.
+     */
+    void handleKey(SelectionKey k) {
+        if (k != key) {
+            k.cancel(); // key of a previous connection
+            return;
+        }
+
+        if (k.isReadable()) {
+            read();
+        }
+
+        if (k.isValid() && k.isWritable()) {
+            flush();
+        }
+    }
+
+    private void enableWrite() {
+        synchronized (writeBuffer) {
+            writeRequested = false;
+        }
+
+        if ((key != null) && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() {
+        try {
+            int n = ((SocketChannel) key.channel()).read(readBuffer);
+
+            if (n < 0) {
+                LOGGER.info("IRCClient/read EOF");
+                signalEOF();
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("IRCClient/read ", e);
+            signalEOF();
+            return;
+        }
+
+        readBuffer.flip();
+        parser.parse(readBuffer);
+        readBuffer.clear();
+    }
+
+    private void flush() {
+        synchronized (writeBuffer) {
+            writeBuffer.flip();
+            try {
+                ((SocketChannel) key.channel()).write(writeBuffer);
+            } catch (IOException e) {
+                LOGGER.error("IRCClient/write: ", e);
+                signalEOF();
+                return;
+            } finally {
+                writeBuffer.compact();
+                writeBuffer.notifyAll();
+            }
+
+            if (writeBuffer.position() == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void signalEOF() {
+        setClosed();
+        key.cancel();
+        recvQ.signalEOF();
+    }
+}
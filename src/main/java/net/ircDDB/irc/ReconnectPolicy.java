@@ -0,0 +1,129 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delay before the next connect attempt: the first retry after a lost
+ * connection is immediate, then the delay doubles per failed attempt up
+ * to a maximum. Half of each delay is random, so gateways which lost the
+ * same server do not reconnect all at once.
+ * A session which lasted at least STABLE_SESSION starts over with an
+ * immediate retry.
+ * <p>
+ * Also measures the time from losing the connection until the next one
+ * is established.
+ */
+public final class ReconnectPolicy {
+    private static final Logger LOGGER = LogManager.getLogger(ReconnectPolicy.class);
+
+    private static final long BASE_DELAY = 1000;  // ms, delay of the second attempt
+    private static final long STABLE_SESSION = 60000;  // ms
+
+    private volatile long maxDelay = 60000;  // ms
+
+    /**
+     * attempts since the last stable session, only used by the IRC client thread
+     */
+    private int attempts;
+    private long connectedAt;
+    private long disconnectedAt;
+
+    private volatile long lastReconnectMillis = -1;
+    private volatile long maxReconnectMillis;
+    private volatile long totalReconnectMillis;
+    private volatile int reconnectCount;
+
+    void setMaxDelay(long millis) {
+        maxDelay = millis;
+    }
+
+    /**
+     * The connection was lost or could not be established.
+     *
+     * @return delay in ms before the next attempt
+     */
+    long disconnected() {
+        long now = System.nanoTime();
+
+        if (connectedAt != 0) {
+            if (TimeUnit.NANOSECONDS.toMillis(now - connectedAt) >= STABLE_SESSION) {
+                attempts = 0;
+            }
+            connectedAt = 0;
+        }
+
+        if (disconnectedAt == 0) {
+            disconnectedAt = now;
+        }
+
+        int n = attempts++;
+        if (n == 0) {
+            return 0;
+        }
+
+        long d = Math.min(maxDelay, BASE_DELAY << Math.min(n - 1, 30));
+        return (d / 2) + ThreadLocalRandom.current().nextLong((d / 2) + 1);
+    }
+
+    void connected() {
+        long now = System.nanoTime();
+
+        connectedAt = now;
+
+        if (disconnectedAt != 0) {
+            long ms = TimeUnit.NANOSECONDS.toMillis(now - disconnectedAt);
+
+            lastReconnectMillis = ms;
+            maxReconnectMillis = Math.max(maxReconnectMillis, ms);
+            totalReconnectMillis += ms;
+            reconnectCount++;
+            disconnectedAt = 0;
+
+            LOGGER.info("IRCClient: reconnected after " + ms + " ms, attempt " + attempts);
+        }
+    }
+
+    /**
+     * @return time to reconnect of the last reconnect in ms, -1 if there was none
+     */
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    public long getMaxReconnectMillis() {
+        return maxReconnectMillis;
+    }
+
+    public long getTotalReconnectMillis() {
+        return totalReconnectMillis;
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+}
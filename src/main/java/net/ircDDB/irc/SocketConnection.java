@@ -6,66 +6,77 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.*;
-import java.util.Arrays;
-
-public class SocketConnection {
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Stream based transport, a dedicated {@link IRCReceiver} thread blocks
+ * on the input stream of the socket.
+ */
+public class SocketConnection implements IRCConnection {
     private static final Logger LOGGER = LogManager.getLogger(SocketConnection.class);
     private Socket socket;
 
 
     public boolean initSocket(String host, int port) {
-        InetAddress[] adr;
-        try {
-            adr = InetAddress.getAllByName(host);
-        } catch (UnknownHostException e) {
-            LOGGER.error("IRCClient/unknown host", e);
+        SocketChannel c = HappyEyeballsConnector.connect(host, port);
+
+        socket = null;
+        if (c == null) {
+            LOGGER.error("IRCClient: no connection");
             return true;
         }
-        if (adr != null) {
-            int num = adr.length;
-
-            if (num > 0 && num < 15) {
-                LOGGER.info("IRCClient/found " + num + " addresses:");
-                Arrays.stream(adr).forEach((a) -> LOGGER.info("  " + a.getHostAddress()));
-
-                int[] shuffle = Utils.getShuffledAddresses(num);
-
-                socket = null;
-                for (int i = 0; i < num; i++) {
-                    InetAddress a = adr[shuffle[i]];
-
-                    LOGGER.info("IRCClient/trying: " + a.getHostAddress());
-                    if (a instanceof Inet4Address || a instanceof Inet6Address) {
-
-                        try {
-                            socket = new Socket();
-                            InetSocketAddress endp = new InetSocketAddress(a, port);
-                            socket.connect(endp, 5000);  // 5 seconds timeout
-                        } catch (IOException e) {
-                            LOGGER.warn("IRCClient/ioexception: ", e);
-                            socket = null;
-                        }
-
-                    }
-                    if (socket != null) {
-                        break;
-                    }
-                }
-
-            } else {
-                LOGGER.error("IRCClient/invalid number of addresses: " + adr.length);
-                return true;
-            }
-        }
 
-        if (socket == null) {
-            LOGGER.error("IRCClient: no connection");
+        try {
+            c.configureBlocking(true);
+            socket = layer(c.socket(), host, port);
+        } catch (IOException e) {
+            LOGGER.error("IRCClient/connect: ", e);
+            try {
+                c.close();
+            } catch (IOException e2) {
+                LOGGER.warn("IRCClient/channel.close: ", e2);
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Hook for protocols on top of the TCP connection.
+     *
+     * @return the socket messages are read from and written to
+     */
+    protected Socket layer(Socket s, String host, int port) throws IOException {
+        return s;
+    }
+
+    public boolean startReceiver(IRCMessageQueue recvQ, IRCMessagePool pool) {
+        InputStream is;
+        try {
+            is = getInputStream();
+        } catch (IOException e) {
+            LOGGER.error("IRCClient/getInputStream: ", e);
+            return false;
+        }
+
+        Thread recvThread = new Thread(new IRCReceiver(is, recvQ, pool));
+        try {
+            recvThread.start();
+        } catch (IllegalThreadStateException e) {
+            LOGGER.error("IRCClient/Thread.start: ", e);
+            return false;
+        }
+        return true;
+    }
+
+    public void write(ByteBuffer b) throws IOException {
+        // the socket stream is unbuffered, one write per batch
+        getOutputStream().write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        b.position(b.limit());
+    }
+
     public InputStream getInputStream() throws IOException {
         return socket.getInputStream();
     }
@@ -0,0 +1,88 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+/**
+ * Stream transport over TLS. The server certificate is checked against
+ * the trust store of the JVM (javax.net.ssl.trustStore) and the server name.
+ * <p>
+ * All connections share one SSLContext, its client session cache lets a
+ * reconnect to the same host and port resume the session instead of
+ * doing a full handshake.
+ */
+class TlsSocketConnection extends SocketConnection {
+    private static final Logger LOGGER = LogManager.getLogger(TlsSocketConnection.class);
+
+    private static final int HANDSHAKE_TIMEOUT = 10000;  // ms
+
+    private static SSLContext context;
+
+    private static synchronized SSLContext getContext() throws IOException {
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("TLS not available", e);
+            }
+        }
+        return context;
+    }
+
+    @Override
+    protected Socket layer(Socket s, String host, int port) throws IOException {
+        SSLSocket ssl = (SSLSocket) getContext().getSocketFactory().createSocket(s, host, port, true);
+
+        SSLParameters p = ssl.getSSLParameters();
+        p.setEndpointIdentificationAlgorithm("HTTPS");  // check the server name
+        ssl.setSSLParameters(p);
+
+        long start = System.currentTimeMillis();
+
+        try {
+            ssl.setSoTimeout(HANDSHAKE_TIMEOUT);
+            ssl.startHandshake();
+            ssl.setSoTimeout(0);
+        } catch (IOException e) {
+            ssl.close();
+            throw e;
+        }
+
+        SSLSession session = ssl.getSession();
+        LOGGER.info("IRCClient/tls: " + session.getProtocol() + " " + session.getCipherSuite()
+                + ((session.getCreationTime() < start) ? " resumed" : " full handshake")
+                + " (" + (System.currentTimeMillis() - start) + " ms)");
+
+        return ssl;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+/**
+ * Flood control of the send side: up to burst messages are sent at once,
+ * then the rate is limited to the refill rate.
+ * Not thread safe, owned by the {@link IRCSender}.
+ */
+final class TokenBucket {
+    private final double burst;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param burst     number of messages the server accepts at once
+     * @param perSecond sustained messages per second
+     */
+    TokenBucket(int burst, double perSecond) {
+        this.burst = burst;
+        this.tokensPerNano = perSecond / 1e9;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    boolean tryAcquire() {
+        refill();
+
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return nanoseconds until {@link #tryAcquire()} succeeds
+     */
+    long nanosUntilAvailable() {
+        refill();
+
+        if (tokens >= 1.0) {
+            return 0;
+        }
+        return (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+
+        tokens = Math.min(burst, tokens + ((now - lastRefill) * tokensPerNano));
+        lastRefill = now;
+    }
+}
@@ -1,8 +1,48 @@
 package net.ircDDB.irc;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Random;
 
 public class Utils {
+    private static final Logger LOGGER = LogManager.getLogger(Utils.class);
+
+    /**
+     * Resolves the host and returns its addresses in shuffled order.
+     *
+     * @return the addresses or null if the host could not be resolved
+     */
+    static InetAddress[] getAddresses(String host) {
+        InetAddress[] adr;
+        try {
+            adr = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            LOGGER.error("IRCClient/unknown host", e);
+            return null;
+        }
+
+        int num = adr.length;
+
+        if (num <= 0 || num >= 15) {
+            LOGGER.error("IRCClient/invalid number of addresses: " + num);
+            return null;
+        }
+
+        LOGGER.info("IRCClient/found " + num + " addresses:");
+        Arrays.stream(adr).forEach((a) -> LOGGER.info("  " + a.getHostAddress()));
+
+        int[] shuffle = getShuffledAddresses(num);
+        InetAddress[] shuffled = new InetAddress[num];
+
+        for (int i = 0; i < num; i++) {
+            shuffled[i] = adr[shuffle[i]];
+        }
+        return shuffled;
+    }
 
     public static int[] getShuffledAddresses(int num) {
         int[] shuffle = new int[num];
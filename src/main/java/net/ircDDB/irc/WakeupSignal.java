@@ -0,0 +1,72 @@
+/*
+
+ircDDB
+
+Copyright (C) 2024   Fabian Franz BSc., OE9LTX
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package net.ircDDB.irc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wakes up one waiting thread, e.g. when a message was put into one of the
+ * queues it consumes. A signal given while nobody waits is not lost,
+ * the next {@link #await(long)} returns immediately.
+ */
+public final class WakeupSignal {
+
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile Thread waiter;
+
+    public void signal() {
+        if (!pending.get() && !pending.getAndSet(true)) {
+            Thread w = waiter;
+
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+
+    /**
+     * Waits until signalled or the timeout elapsed.
+     *
+     * @param timeoutNanos maximum time to wait, {@link #FOREVER} for no timeout
+     */
+    public void await(long timeoutNanos) {
+        waiter = Thread.currentThread();
+
+        if (timeoutNanos == FOREVER) {
+            while (!pending.getAndSet(false) && !Thread.currentThread().isInterrupted()) {
+                LockSupport.park(this);
+            }
+            return;
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        long remaining = timeoutNanos;
+
+        while (!pending.getAndSet(false) && (remaining > 0) && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}